@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git;
+
+import java.util.Date;
+
+/**
+ * Result of a repository maintenance: storage statistics before and after the garbage collection.
+ */
+public class MaintenanceInfo {
+
+  private String repositoryPath;
+
+  private Date date;
+
+  private long durationMillis;
+
+  private PackStatistics before;
+
+  private PackStatistics after;
+
+  public String getRepositoryPath() {
+    return repositoryPath;
+  }
+
+  public Date getDate() {
+    return date;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  public PackStatistics getBefore() {
+    return before;
+  }
+
+  public PackStatistics getAfter() {
+    return after;
+  }
+
+  @Override
+  public String toString() {
+    return "MaintenanceInfo{" +
+        "repositoryPath='" + repositoryPath + '\'' +
+        ", date=" + date +
+        ", durationMillis=" + durationMillis +
+        ", before=" + before +
+        ", after=" + after +
+        '}';
+  }
+
+  @SuppressWarnings("ParameterHidesMemberVariable")
+  public static class Builder {
+
+    private final MaintenanceInfo maintenanceInfo = new MaintenanceInfo();
+
+    public Builder repositoryPath(String repositoryPath) {
+      maintenanceInfo.repositoryPath = repositoryPath;
+      return this;
+    }
+
+    public Builder date(Date date) {
+      maintenanceInfo.date = date;
+      return this;
+    }
+
+    public Builder durationMillis(long durationMillis) {
+      maintenanceInfo.durationMillis = durationMillis;
+      return this;
+    }
+
+    public Builder before(PackStatistics before) {
+      maintenanceInfo.before = before;
+      return this;
+    }
+
+    public Builder after(PackStatistics after) {
+      maintenanceInfo.after = after;
+      return this;
+    }
+
+    public MaintenanceInfo build() {
+      return maintenanceInfo;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git;
+
+import java.util.Properties;
+
+/**
+ * Object and ref storage statistics of a repository, as reported by the JGit garbage collector.
+ */
+public class PackStatistics {
+
+  private long looseObjects;
+
+  private long looseObjectsSize;
+
+  private long packedObjects;
+
+  private long packedObjectsSize;
+
+  private long packFiles;
+
+  private long looseRefs;
+
+  private long packedRefs;
+
+  /**
+   * @param statistics statistics returned by {@link org.eclipse.jgit.api.GarbageCollectCommand#getStatistics()}
+   * @return
+   */
+  public static PackStatistics fromGcStatistics(Properties statistics) {
+    PackStatistics packStatistics = new PackStatistics();
+    packStatistics.looseObjects = getLong(statistics, "numberOfLooseObjects");
+    packStatistics.looseObjectsSize = getLong(statistics, "sizeOfLooseObjects");
+    packStatistics.packedObjects = getLong(statistics, "numberOfPackedObjects");
+    packStatistics.packedObjectsSize = getLong(statistics, "sizeOfPackedObjects");
+    packStatistics.packFiles = getLong(statistics, "numberOfPackFiles");
+    packStatistics.looseRefs = getLong(statistics, "numberOfLooseRefs");
+    packStatistics.packedRefs = getLong(statistics, "numberOfPackedRefs");
+    return packStatistics;
+  }
+
+  private static long getLong(Properties statistics, String key) {
+    Object value = statistics.get(key);
+    return value instanceof Number number ? number.longValue() : 0;
+  }
+
+  public long getLooseObjects() {
+    return looseObjects;
+  }
+
+  public long getLooseObjectsSize() {
+    return looseObjectsSize;
+  }
+
+  public long getPackedObjects() {
+    return packedObjects;
+  }
+
+  public long getPackedObjectsSize() {
+    return packedObjectsSize;
+  }
+
+  public long getPackFiles() {
+    return packFiles;
+  }
+
+  public long getLooseRefs() {
+    return looseRefs;
+  }
+
+  public long getPackedRefs() {
+    return packedRefs;
+  }
+
+  @Override
+  public String toString() {
+    return "PackStatistics{" +
+        "looseObjects=" + looseObjects +
+        ", looseObjectsSize=" + looseObjectsSize +
+        ", packedObjects=" + packedObjects +
+        ", packedObjectsSize=" + packedObjectsSize +
+        ", packFiles=" + packFiles +
+        ", looseRefs=" + looseRefs +
+        ", packedRefs=" + packedRefs +
+        '}';
+  }
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import jakarta.annotation.Nullable;
+
+/**
+ * Per repository index of the commits that changed each file, most recent first. The index is an append-only file
+ * stored in the bare repository folder. It is built in memory when first read and only moves forward with the history:
+ * commits are indexed as HEAD advances, and the index file is only written by {@link #update(File, Repository)}, which
+ * is called by the write commands while the repository is exclusively locked. It is rebuilt from the history when it
+ * is missing, corrupted or when the history was rewritten.
+ * <p>
+ * Commits are compared to their first parent, which gives the same history as a path log for linear histories only:
+ * the index does not {@link #matches(ObjectId)} a history with merge commits, and the callers then walk the history.
+ * Only files are indexed, not folders.
+ */
+public class PathHistoryIndex {
+
+  private static final Logger log = LoggerFactory.getLogger(PathHistoryIndex.class);
+
+  private static final String INDEX_FILE = "obiba-path-history";
+
+  private static final int MAGIC = 0x4f504849;
+
+  private static final int VERSION = 2;
+
+  /**
+   * Strongly held so that a single instance serves a repository while it is cached. An evicted instance still in use
+   * detects that another instance wrote the index file before writing to it.
+   */
+  private static final Cache<String, PathHistoryIndex> indexes = CacheBuilder.newBuilder() //
+      .maximumSize(100) //
+      .build();
+
+  private final File indexFile;
+
+  /**
+   * Commits of each path, oldest first.
+   */
+  private final Map<String, List<ObjectId>> history = new HashMap<>();
+
+  /**
+   * Commits indexed in memory and not written to the index file yet, oldest first.
+   */
+  private final List<IndexedCommit> pending = new ArrayList<>();
+
+  @Nullable
+  private ObjectId lastCommit;
+
+  private boolean loaded;
+
+  private boolean linear = true;
+
+  /**
+   * Whether the index file is to be replaced by the pending commits instead of being extended.
+   */
+  private boolean rewrite;
+
+  /**
+   * Length of the index file when it was last read or written by this instance, -1 if there was none.
+   */
+  private long fileLength = -1;
+
+  private PathHistoryIndex(File repositoryPath) {
+    indexFile = new File(repositoryPath, INDEX_FILE);
+  }
+
+  /**
+   * Get the index of the bare repository, brought forward to the HEAD of the given repository (the bare repository
+   * itself or one of its clones) if HEAD is ahead of it. The index is built when missing.
+   *
+   * @param repositoryPath bare repository path
+   * @param repository
+   * @return
+   * @throws IOException
+   */
+  public static PathHistoryIndex get(File repositoryPath, Repository repository) throws IOException {
+    PathHistoryIndex index = getCached(repositoryPath);
+    index.catchUp(repository, false);
+    return index;
+  }
+
+  /**
+   * Same as {@link #get(File, Repository)} but the index is not built when missing.
+   *
+   * @param repositoryPath bare repository path
+   * @param repository
+   * @return null if the index was not built yet
+   * @throws IOException
+   */
+  @Nullable
+  public static PathHistoryIndex find(File repositoryPath, Repository repository) throws IOException {
+    if(indexes.getIfPresent(repositoryPath.getAbsolutePath()) == null &&
+        !new File(repositoryPath, INDEX_FILE).exists()) return null;
+    return get(repositoryPath, repository);
+  }
+
+  /**
+   * Whether the commit is the most recent one that changed the file in the history of HEAD. The index is used if it
+   * was already built and matches HEAD, otherwise the history of the path is walked from HEAD to its most recent
+   * change: the index is never built by this call.
+   *
+   * @param repositoryPath bare repository path
+   * @param repository
+   * @param path
+   * @param commitId
+   * @return
+   * @throws IOException
+   */
+  public static boolean isCurrent(File repositoryPath, Repository repository, String path, String commitId)
+      throws IOException {
+    ObjectId head = repository.resolve(Constants.HEAD);
+    if(head == null) return false;
+    try(RevWalk walk = new RevWalk(repository)) {
+      return isCurrent(findMatching(repositoryPath, repository, head), walk, head, path, commitId);
+    }
+  }
+
+  /**
+   * Same as {@link #isCurrent(File, Repository, String, String)} for checking many paths at once, with HEAD resolved
+   * and the index looked up by the caller, see {@link #findMatching(File, Repository, ObjectId)}. The given walk is
+   * reset before and after walking the history of the path, its parsed commits are reused.
+   *
+   * @param index index matching HEAD, null to walk the history of the path
+   * @param walk
+   * @param head
+   * @param path
+   * @param commitId
+   * @return
+   * @throws IOException
+   */
+  public static boolean isCurrent(@Nullable PathHistoryIndex index, RevWalk walk, ObjectId head, String path,
+      String commitId) throws IOException {
+    if(index != null) return index.isCurrent(path, commitId);
+    walk.reset();
+    try {
+      walk.markStart(walk.parseCommit(head));
+      walk.setRewriteParents(false);
+      walk.setTreeFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(path), TreeFilter.ANY_DIFF));
+      RevCommit current = walk.next();
+      return current != null && current.getName().equals(commitId);
+    } finally {
+      walk.reset();
+      walk.setTreeFilter(TreeFilter.ALL);
+      walk.setRewriteParents(true);
+    }
+  }
+
+  /**
+   * Get the index of the bare repository if it was already built and matches the given HEAD, see
+   * {@link #matches(ObjectId)}.
+   *
+   * @param repositoryPath bare repository path
+   * @param repository
+   * @param head
+   * @return null if the index was not built yet or does not match HEAD
+   * @throws IOException
+   */
+  @Nullable
+  public static PathHistoryIndex findMatching(File repositoryPath, Repository repository, ObjectId head)
+      throws IOException {
+    PathHistoryIndex index = find(repositoryPath, repository);
+    return index != null && index.matches(head) ? index : null;
+  }
+
+  /**
+   * Bring the index forward to the HEAD of the repository and write the commits indexed since the last write, if the
+   * index was already built: a missing index is only built when it is first read. Must be called while the repository
+   * is exclusively locked.
+   *
+   * @param repositoryPath bare repository path
+   * @param repository
+   */
+  public static void update(File repositoryPath, Repository repository) {
+    PathHistoryIndex index = indexes.getIfPresent(repositoryPath.getAbsolutePath());
+    if(index == null && !new File(repositoryPath, INDEX_FILE).exists()) return;
+    try {
+      if(index == null) index = getCached(repositoryPath);
+      index.catchUp(repository, true);
+      index.write();
+    } catch(IOException | RuntimeException e) {
+      log.warn("Failed to update the path history index of {}, it will be rebuilt: {}", repositoryPath,
+          e.getMessage());
+      invalidate(repositoryPath);
+    }
+  }
+
+  /**
+   * Drop the index of the bare repository, in memory and on disk.
+   *
+   * @param repositoryPath
+   */
+  public static void invalidate(File repositoryPath) {
+    indexes.invalidate(repositoryPath.getAbsolutePath());
+    //noinspection ResultOfMethodCallIgnored
+    new File(repositoryPath, INDEX_FILE).delete();
+  }
+
+  private static PathHistoryIndex getCached(File repositoryPath) throws IOException {
+    try {
+      return indexes.get(repositoryPath.getAbsolutePath(), () -> new PathHistoryIndex(repositoryPath));
+    } catch(ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Ids of the commits that changed the file, most recent first. Empty if the path is not a file of the history.
+   *
+   * @param path
+   * @return
+   */
+  public synchronized List<ObjectId> getCommits(String path) {
+    List<ObjectId> commits = history.get(path);
+    return commits == null ? Collections.emptyList() : List.copyOf(Lists.reverse(commits));
+  }
+
+  /**
+   * Most recent commit that changed the file.
+   *
+   * @param path
+   * @return
+   */
+  @Nullable
+  public synchronized ObjectId getCurrentCommit(String path) {
+    List<ObjectId> commits = history.get(path);
+    return commits == null ? null : commits.get(commits.size() - 1);
+  }
+
+  /**
+   * Whether the commit is the most recent one that changed the file.
+   *
+   * @param path
+   * @param commitId
+   * @return
+   */
+  public boolean isCurrent(String path, String commitId) {
+    ObjectId current = getCurrentCommit(path);
+    return current != null && current.getName().equals(commitId);
+  }
+
+  public synchronized boolean contains(String path) {
+    return history.containsKey(path);
+  }
+
+  /**
+   * Last commit indexed, expected to be the HEAD of the repository.
+   *
+   * @return
+   */
+  @Nullable
+  public synchronized ObjectId getLastCommit() {
+    return lastCommit;
+  }
+
+  /**
+   * Whether the index gives the same path histories as a walk from the HEAD commit: the index was brought up to this
+   * commit (HEAD of a clone may be behind) and the history has no merge commits.
+   *
+   * @param head
+   * @return
+   */
+  public synchronized boolean matches(ObjectId head) {
+    return linear && head.equals(lastCommit);
+  }
+
+  /**
+   * Index the commits between the last indexed one and HEAD. The history is only rebuilt when the index cannot be read
+   * or, for a write, when the history was rewritten: a HEAD that is behind the index or on another branch is ignored.
+   */
+  private synchronized void catchUp(Repository repository, boolean write) throws IOException {
+    if(!loaded || write && isFileChanged()) {
+      if(!load()) {
+        build(repository);
+        return;
+      }
+    }
+
+    ObjectId head = repository.resolve(Constants.HEAD);
+    if(head == null || head.equals(lastCommit)) return;
+    if(lastCommit == null) {
+      build(repository);
+      return;
+    }
+
+    try(RevWalk walk = new RevWalk(repository)) {
+      RevCommit headCommit = walk.parseCommit(head);
+      RevCommit last;
+      try {
+        last = walk.parseCommit(lastCommit);
+      } catch(MissingObjectException e) {
+        last = null;
+      }
+      if(last != null && walk.isMergedInto(last, headCommit)) {
+        walk.reset();
+        walk.markStart(headCommit);
+        walk.markUninteresting(last);
+        walk.sort(RevSort.TOPO);
+        walk.sort(RevSort.REVERSE, true);
+        index(walk);
+      } else if(write && (last == null || !walk.isMergedInto(headCommit, last))) {
+        // history was rewritten
+        build(repository);
+      }
+    }
+  }
+
+  private boolean isFileChanged() {
+    return (indexFile.exists() ? indexFile.length() : -1) != fileLength;
+  }
+
+  private void build(Repository repository) throws IOException {
+    log.debug("Build path history index {}", indexFile.getAbsolutePath());
+    clear();
+    loaded = true;
+    rewrite = true;
+    ObjectId head = repository.resolve(Constants.HEAD);
+    if(head == null) return;
+    try(RevWalk walk = new RevWalk(repository)) {
+      walk.markStart(walk.parseCommit(head));
+      walk.sort(RevSort.TOPO);
+      walk.sort(RevSort.REVERSE, true);
+      index(walk);
+    }
+  }
+
+  /**
+   * Index the walked commits, oldest first.
+   */
+  private void index(RevWalk walk) throws IOException {
+    CanonicalTreeParser parentParser = new CanonicalTreeParser();
+    CanonicalTreeParser commitParser = new CanonicalTreeParser();
+    try(TreeWalk treeWalk = new TreeWalk(walk.getObjectReader())) {
+      treeWalk.setRecursive(true);
+      treeWalk.setFilter(TreeFilter.ANY_DIFF);
+      for(RevCommit commit : walk) {
+        treeWalk.reset();
+        if(commit.getParentCount() == 0) {
+          treeWalk.addTree(new EmptyTreeIterator());
+        } else {
+          RevCommit parent = commit.getParent(0);
+          walk.parseHeaders(parent);
+          parentParser.reset(walk.getObjectReader(), parent.getTree());
+          treeWalk.addTree(parentParser);
+        }
+        commitParser.reset(walk.getObjectReader(), commit.getTree());
+        treeWalk.addTree(commitParser);
+
+        List<String> paths = new ArrayList<>();
+        while(treeWalk.next()) {
+          paths.add(treeWalk.getPathString());
+        }
+        IndexedCommit indexed = new IndexedCommit(commit.copy(), commit.getParentCount() > 1, paths);
+        add(indexed);
+        pending.add(indexed);
+      }
+    }
+  }
+
+  /**
+   * Write the pending commits to the index file, replacing it after a build.
+   */
+  private synchronized void write() throws IOException {
+    if(!loaded || pending.isEmpty() && !rewrite) return;
+    if(rewrite) {
+      File tmpFile = new File(indexFile.getParentFile(), INDEX_FILE + ".tmp");
+      try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        write(out);
+      }
+      Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } else {
+      try(DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(indexFile, true)))) {
+        write(out);
+      }
+    }
+    pending.clear();
+    rewrite = false;
+    fileLength = indexFile.length();
+  }
+
+  private void write(DataOutputStream out) throws IOException {
+    for(IndexedCommit indexed : pending) {
+      indexed.commitId.copyRawTo(out);
+      out.writeBoolean(indexed.merge);
+      out.writeInt(indexed.paths.size());
+      for(String path : indexed.paths) {
+        out.writeUTF(path);
+      }
+    }
+  }
+
+  private boolean load() {
+    clear();
+    if(!indexFile.exists()) return false;
+    long length = indexFile.length();
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+      if(in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+      byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+      int first;
+      while((first = in.read()) != -1) {
+        // an incomplete record fails with an EOFException
+        raw[0] = (byte) first;
+        in.readFully(raw, 1, raw.length - 1);
+        ObjectId commitId = ObjectId.fromRaw(raw);
+        boolean merge = in.readBoolean();
+        int count = in.readInt();
+        List<String> paths = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+          paths.add(in.readUTF());
+        }
+        add(new IndexedCommit(commitId, merge, paths));
+      }
+      loaded = true;
+      fileLength = length;
+      return true;
+    } catch(IOException e) {
+      log.warn("Cannot read path history index {}: {}", indexFile.getAbsolutePath(), e.getMessage());
+      clear();
+      return false;
+    }
+  }
+
+  private void clear() {
+    history.clear();
+    pending.clear();
+    lastCommit = null;
+    linear = true;
+    loaded = false;
+    rewrite = false;
+    fileLength = -1;
+  }
+
+  private void add(IndexedCommit indexed) {
+    for(String path : indexed.paths) {
+      history.computeIfAbsent(path, p -> new ArrayList<>(1)).add(indexed.commitId);
+    }
+    if(indexed.merge) linear = false;
+    lastCommit = indexed.commitId;
+  }
+
+  /**
+   * Files changed by a commit, compared to its first parent.
+   */
+  private static class IndexedCommit {
+
+    private final ObjectId commitId;
+
+    private final boolean merge;
+
+    private final List<String> paths;
+
+    private IndexedCommit(ObjectId commitId, boolean merge, List<String> paths) {
+      this.commitId = commitId;
+      this.merge = merge;
+      this.paths = paths;
+    }
+  }
+
+}
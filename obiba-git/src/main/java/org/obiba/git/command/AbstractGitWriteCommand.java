@@ -11,6 +11,15 @@
 package org.obiba.git.command;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import jakarta.validation.constraints.NotNull;
 
@@ -18,7 +27,18 @@ import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.subject.Subject;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.PushResult;
+import org.obiba.git.GitException;
+import org.obiba.git.PathHistoryIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import jakarta.annotation.Nullable;
@@ -61,7 +81,93 @@ public abstract class AbstractGitWriteCommand extends AbstractGitCommand<Iterabl
         .setCommitter(name, email) //
         .setMessage(getCommitMessage()) //
         .call();
-    return git.push().setPushAll().setRemote("origin").call();
+    Iterable<PushResult> results = git.push().setPushAll().setRemote("origin").call();
+    PathHistoryIndex.update(getRepositoryPath(), git.getRepository());
+    return results;
+  }
+
+  /**
+   * Stage files in the index of a clone: each content is streamed once into the object database, hashed while it is
+   * inserted, and the index entries are edited in place, without scanning the work tree. The files are then written in
+   * the work tree from their blobs so that the clone stays consistent with its index.
+   *
+   * @param git the clone
+   * @param files contents by path in repository
+   * @throws IOException
+   */
+  void addToIndex(Git git, Map<String, InputStream> files) throws IOException {
+    if(files.isEmpty()) return;
+    Repository repository = git.getRepository();
+    Map<String, ObjectId> blobIds = new LinkedHashMap<>();
+    try(ObjectInserter inserter = repository.newObjectInserter()) {
+      for(Map.Entry<String, InputStream> file : files.entrySet()) {
+        blobIds.put(file.getKey(), InMemoryCommit.insert(inserter, file.getValue()));
+      }
+      inserter.flush();
+    }
+
+    DirCache dirCache = repository.lockDirCache();
+    try(ObjectReader reader = repository.newObjectReader()) {
+      DirCacheEditor editor = dirCache.editor();
+      for(Map.Entry<String, ObjectId> blob : blobIds.entrySet()) {
+        File file = new File(repository.getWorkTree(), blob.getKey());
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        log.debug("Write file {}", file);
+        try(OutputStream out = new FileOutputStream(file)) {
+          reader.open(blob.getValue(), Constants.OBJ_BLOB).copyTo(out);
+        }
+        ObjectId blobId = blob.getValue();
+        long length = file.length();
+        Instant lastModified = Files.getLastModifiedTime(file.toPath()).toInstant();
+        editor.add(new DirCacheEditor.PathEdit(blob.getKey()) {
+          @Override
+          public void apply(DirCacheEntry entry) {
+            entry.setFileMode(FileMode.REGULAR_FILE);
+            entry.setObjectId(blobId);
+            entry.setLength(length);
+            entry.setLastModified(lastModified);
+          }
+        });
+      }
+      if(!editor.commit()) {
+        throw new GitException("Cannot write the index of " + repository.getDirectory());
+      }
+    } finally {
+      dirCache.unlock();
+    }
+  }
+
+  /**
+   * Commit the changes of the command directly in the bare repository, nothing to push.
+   *
+   * @param git the bare repository
+   * @param command the command which changes are staged in memory
+   * @return no push results
+   */
+  static <C extends AbstractGitWriteCommand & InMemoryWriteCommand> Iterable<PushResult> executeBare(Git git,
+      C command) {
+    try(InMemoryCommit commit = new InMemoryCommit(git.getRepository())) {
+      commit.stage(command);
+      command.commit(git, commit);
+      return Collections.emptyList();
+    } catch(IOException e) {
+      throw new GitException(e);
+    }
+  }
+
+  /**
+   * Commit directly in the bare repository, nothing to push.
+   *
+   * @param git the bare repository
+   * @param commit
+   * @return the new commit id
+   * @throws IOException
+   */
+  ObjectId commit(Git git, InMemoryCommit commit) throws IOException {
+    ObjectId commitId = commit.commit(getAuthorName(), getAuthorEmail(), getCommitMessage());
+    PathHistoryIndex.update(getRepositoryPath(), git.getRepository());
+    return commitId;
   }
 
   @Override
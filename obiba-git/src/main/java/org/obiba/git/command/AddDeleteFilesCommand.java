@@ -13,12 +13,10 @@ package org.obiba.git.command;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import jakarta.validation.constraints.NotNull;
 
@@ -26,14 +24,10 @@ import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.transport.PushResult;
 import org.obiba.git.GitException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import jakarta.annotation.Nullable;
 
 @SuppressWarnings("ClassTooDeepInInheritanceTree")
-public class AddDeleteFilesCommand extends AbstractGitWriteCommand {
-
-  private static final Logger log = LoggerFactory.getLogger(AddDeleteFilesCommand.class);
+public class AddDeleteFilesCommand extends AbstractGitWriteCommand implements InMemoryWriteCommand {
 
   private final Collection<FileDescriptor> filesToAdd = new ArrayList<>();
 
@@ -45,15 +39,14 @@ public class AddDeleteFilesCommand extends AbstractGitWriteCommand {
 
   @Override
   public Iterable<PushResult> execute(Git git) {
+    if(git.getRepository().isBare()) return executeBare(git, this);
     try {
+      // only the written files are staged, the rest of the work tree is not scanned
+      Map<String, InputStream> contents = new LinkedHashMap<>();
       for(FileDescriptor file : filesToAdd) {
-        Path path = Paths.get(git.getRepository().getWorkTree().getAbsolutePath(), file.getPathInRepo());
-        //noinspection ResultOfMethodCallIgnored
-        path.toFile().mkdirs();
-        log.debug("Copy file to {}", path);
-        Files.copy(file.getInputStream(), path, StandardCopyOption.REPLACE_EXISTING);
+        contents.put(file.getPathInRepo(), file.getInputStream());
       }
-      git.add().addFilepattern(".").call();
+      addToIndex(git, contents);
       for(String filePattern : filePatternsToDelete) {
         git.rm().addFilepattern(filePattern).call();
       }
@@ -64,6 +57,21 @@ public class AddDeleteFilesCommand extends AbstractGitWriteCommand {
     }
   }
 
+  @Override
+  public void stage(InMemoryCommit commit) throws IOException {
+    for(FileDescriptor file : filesToAdd) {
+      commit.add(file.getPathInRepo(), file.getInputStream());
+    }
+    for(String filePattern : filePatternsToDelete) {
+      commit.delete(filePattern);
+    }
+  }
+
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
   public static class FileDescriptor {
 
     private final String pathInRepo;
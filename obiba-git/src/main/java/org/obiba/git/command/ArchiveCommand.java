@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import jakarta.validation.constraints.NotNull;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.archive.TgzFormat;
+import org.eclipse.jgit.archive.ZipFormat;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.obiba.git.GitException;
+
+import com.google.common.base.Strings;
+import jakarta.annotation.Nullable;
+
+/**
+ * Opal GIT command used to export the files of a commit (HEAD by default) as an archive written to the given output
+ * stream. The commit is resolved while the repository is locked, its files are then streamed one by one from the
+ * object database to the output stream once the lock is released, so that a slow client does not hold the lock. The
+ * archive of an empty repository has no entries. The output stream is not closed.
+ */
+public class ArchiveCommand extends AbstractGitCommand<Integer> implements SnapshotGitCommand<Integer> {
+
+  public enum Format {
+    ZIP, TAR_GZ
+  }
+
+  private final OutputStream outputStream;
+
+  private Format format = Format.ZIP;
+
+  private String commitId;
+
+  private String tag;
+
+  private String prefix = "";
+
+  /**
+   * Commit of the archive, null for the HEAD of an empty repository.
+   */
+  @Nullable
+  private RevCommit commit;
+
+  private boolean resolved;
+
+  private ArchiveCommand(@NotNull File repositoryPath, @Nullable File workPath, OutputStream outputStream) {
+    super(repositoryPath, workPath);
+    this.outputStream = outputStream;
+  }
+
+  /**
+   * Resolve the commit of the archive.
+   *
+   * @return 0, the number of files in the archive is returned by {@link #complete(Integer, Git)}
+   */
+  @Override
+  public Integer execute(Git git) {
+    Repository repository = git.getRepository();
+    try(RevWalk walk = new RevWalk(repository)) {
+      ObjectId objectId = resolveCommit(repository);
+      commit = objectId == null ? null : walk.parseCommit(objectId);
+      resolved = true;
+      return 0;
+    } catch(IOException e) {
+      throw new GitException(e);
+    }
+  }
+
+  /**
+   * Write the files of the resolved commit to the output stream, once the repository lock is released.
+   *
+   * @return the number of files in the archive
+   */
+  @Override
+  public Integer complete(Integer result, Git git) {
+    if(!resolved) throw new IllegalStateException("Archive commit was not resolved");
+    try(ObjectReader reader = git.getRepository().newObjectReader(); TreeWalk treeWalk = new TreeWalk(reader)) {
+      if(commit == null) {
+        treeWalk.addTree(new EmptyTreeIterator());
+      } else {
+        treeWalk.addTree(commit.getTree());
+      }
+      treeWalk.setRecursive(true);
+      OutputStream out = new UnclosedOutputStream(outputStream);
+      int count = format == Format.ZIP
+          ? write(new ZipFormat(), treeWalk, reader, out)
+          : write(new TgzFormat(), treeWalk, reader, out);
+      outputStream.flush();
+      return count;
+    } catch(IOException e) {
+      throw new GitException(e);
+    }
+  }
+
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
+  /**
+   * @return null if the HEAD commit is requested and the repository has no commit yet
+   */
+  @Nullable
+  private ObjectId resolveCommit(Repository repository) throws IOException {
+    String revision = Strings.isNullOrEmpty(tag)
+        ? Strings.isNullOrEmpty(commitId) ? Constants.HEAD : commitId
+        : Constants.R_TAGS + tag;
+    ObjectId objectId = repository.resolve(revision + "^{commit}");
+    if(objectId == null && !Constants.HEAD.equals(revision)) {
+      throw new GitException("No commit for '%s'".formatted(revision));
+    }
+    return objectId;
+  }
+
+  private <T extends Closeable> int write(org.eclipse.jgit.api.ArchiveCommand.Format<T> archiveFormat,
+      TreeWalk treeWalk, ObjectReader reader, OutputStream out) throws IOException {
+    int count = 0;
+    try(T archive = archiveFormat.createArchiveOutputStream(out)) {
+      while(treeWalk.next()) {
+        FileMode mode = treeWalk.getFileMode(0);
+        // submodules have no content in this repository
+        if(mode.getObjectType() != Constants.OBJ_BLOB) continue;
+        // entries are dated with the commit time
+        archiveFormat.putEntry(archive, commit, prefix + treeWalk.getPathString(), mode,
+            reader.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB));
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * The archive streams close the stream they write to when finished.
+   */
+  private static final class UnclosedOutputStream extends FilterOutputStream {
+
+    private UnclosedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  @SuppressWarnings("ParameterHidesMemberVariable")
+  public static class Builder {
+
+    private final ArchiveCommand command;
+
+    public Builder(@NotNull File repositoryPath, @NotNull OutputStream outputStream) {
+      this(repositoryPath, null, outputStream);
+    }
+
+    public Builder(@NotNull File repositoryPath, @Nullable File workPath, @NotNull OutputStream outputStream) {
+      command = new ArchiveCommand(repositoryPath, workPath, outputStream);
+    }
+
+    public Builder format(Format format) {
+      command.format = format;
+      return this;
+    }
+
+    public Builder commitId(String commitId) {
+      command.commitId = commitId;
+      return this;
+    }
+
+    public Builder tag(String tag) {
+      command.tag = tag;
+      return this;
+    }
+
+    /**
+     * Folder of the files in the archive, e.g. 'project/'.
+     *
+     * @param prefix
+     * @return
+     */
+    public Builder prefix(String prefix) {
+      command.prefix = Strings.nullToEmpty(prefix);
+      return this;
+    }
+
+    public ArchiveCommand build() {
+      return command;
+    }
+  }
+}
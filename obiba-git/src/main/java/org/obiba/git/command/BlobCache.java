@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.obiba.git.GitException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import jakarta.annotation.Nullable;
+
+/**
+ * Bounded cache of file contents, keyed by blob id. Blobs are immutable, so are the blobs of a path at a given commit:
+ * the cache is consulted by {@link GitCommandHandler} before taking any lock when a {@link CacheableBlobCommand} is
+ * executed with a full commit id. The blob of a path is looked up per repository, a repository can only read the
+ * contents it resolved itself.
+ */
+public class BlobCache {
+
+  public static final long DEFAULT_MAXIMUM_WEIGHT = 64L * 1024 * 1024;
+
+  public static final int DEFAULT_MAXIMUM_BLOB_SIZE = 1024 * 1024;
+
+  private static final int MAXIMUM_BLOB_IDS = 100_000;
+
+  private final int maximumBlobSize;
+
+  /**
+   * Blob id of the path at a commit, keyed by 'repositoryPath:commitId:path'.
+   */
+  private final Cache<String, ObjectId> blobIds = CacheBuilder.newBuilder() //
+      .maximumSize(MAXIMUM_BLOB_IDS) //
+      .build();
+
+  private final Cache<ObjectId, byte[]> blobs;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  public BlobCache() {
+    this(DEFAULT_MAXIMUM_WEIGHT, DEFAULT_MAXIMUM_BLOB_SIZE);
+  }
+
+  /**
+   * @param maximumWeight maximum number of bytes held by the cache
+   * @param maximumBlobSize blobs larger than this number of bytes are not cached
+   */
+  public BlobCache(long maximumWeight, int maximumBlobSize) {
+    this.maximumBlobSize = maximumBlobSize;
+    blobs = CacheBuilder.newBuilder() //
+        .maximumWeight(maximumWeight) //
+        .weigher((ObjectId blobId, byte[] content) -> content.length) //
+        .recordStats() //
+        .build();
+  }
+
+  /**
+   * Whether the file content of a commit can be cached: commit must be identified by its full id.
+   *
+   * @param commitId
+   * @return
+   */
+  public static boolean isCacheable(@Nullable String commitId) {
+    return commitId != null && ObjectId.isId(commitId);
+  }
+
+  /**
+   * Get the cached file content at the given commit.
+   *
+   * @param repositoryPath
+   * @param commitId
+   * @param path
+   * @return null if not cached
+   */
+  @Nullable
+  public byte[] getIfPresent(File repositoryPath, String commitId, String path) {
+    ObjectId blobId = blobIds.getIfPresent(key(repositoryPath, commitId, path));
+    byte[] content = blobId == null ? null : blobs.getIfPresent(blobId);
+    if(content == null) misses.increment();
+    else hits.increment();
+    return content;
+  }
+
+  /**
+   * Cache statistics: hits and misses of file content lookups, evictions of blobs.
+   *
+   * @return
+   */
+  public CacheStats stats() {
+    return new CacheStats(hits.sum(), misses.sum(), 0, 0, 0, blobs.stats().evictionCount());
+  }
+
+  /**
+   * Number of bytes currently cached.
+   *
+   * @return
+   */
+  public long weight() {
+    return blobs.asMap().values().stream().mapToLong(content -> content.length).sum();
+  }
+
+  public void invalidateAll() {
+    blobIds.invalidateAll();
+    blobs.invalidateAll();
+  }
+
+  /**
+   * Command loading the file content of the given command into the cache and building its result. The blobs too large
+   * to be cached are read by the given command itself, within the same lock.
+   */
+  <T> LoadCommand<T> newLoadCommand(CacheableBlobCommand<T> command) {
+    return new LoadCommand<>(command);
+  }
+
+  private static String key(File repositoryPath, String commitId, String path) {
+    return repositoryPath.getAbsolutePath() + ':' + commitId + ':' + path;
+  }
+
+  class LoadCommand<T> extends AbstractGitCommand<T> {
+
+    private final CacheableBlobCommand<T> command;
+
+    private LoadCommand(CacheableBlobCommand<T> command) {
+      super(command.getRepositoryPath(), command.getWorkPath());
+      this.command = command;
+    }
+
+    @Override
+    public T execute(Git git) {
+      Repository repository = git.getRepository();
+      String commitId = command.getCommitId();
+      String path = command.getPath();
+      try(ObjectReader reader = repository.newObjectReader(); RevWalk walk = new RevWalk(reader)) {
+        ObjectId commit = ObjectId.fromString(commitId);
+        TreeWalk treeWalk = TreeWalk.forPath(reader, path, walk.parseCommit(commit).getTree());
+        if(treeWalk == null) {
+          throw new GitException("Path '%s' was not found in commit '%s'".formatted(path, commitId));
+        }
+        ObjectId blobId = treeWalk.getObjectId(0);
+        byte[] content = blobs.getIfPresent(blobId);
+        if(content == null) {
+          // too large to be cached
+          if(reader.getObjectSize(blobId, Constants.OBJ_BLOB) > maximumBlobSize) return command.execute(git);
+          content = reader.open(blobId, Constants.OBJ_BLOB).getCachedBytes();
+          blobs.put(blobId, content);
+        }
+        blobIds.put(key(getRepositoryPath(), commitId, path), blobId);
+        return command.fromBlob(content);
+      } catch(IOException e) {
+        throw new GitException(e);
+      }
+    }
+
+    @Override
+    public boolean requiresWorkTree() {
+      return command.requiresWorkTree();
+    }
+  }
+}
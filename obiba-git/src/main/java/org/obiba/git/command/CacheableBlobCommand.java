@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import jakarta.annotation.Nullable;
+
+/**
+ * Command reading the content of a file at a given commit, which result can be built from a {@link BlobCache} entry.
+ *
+ * @param <T>
+ */
+public interface CacheableBlobCommand<T> extends GitCommand<T> {
+
+  /**
+   * Commit from which the file is read. Only full commit ids are looked up in the cache.
+   * @return
+   */
+  @Nullable
+  String getCommitId();
+
+  /**
+   * Path of the file in the repository.
+   * @return
+   */
+  String getPath();
+
+  /**
+   * Build the command result from the file content.
+   * @param content
+   * @return
+   */
+  T fromBlob(byte[] content);
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.obiba.core.util.FileUtil;
+import org.obiba.git.GitException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the clones that are kept between commands (commands with a work path) and deletes the least recently
+ * used idle clones when the total size of the clones exceeds the disk budget. The clones in use count in the total size
+ * but are never evicted: the budget can be exceeded while they are in use. Only the clones used since startup are
+ * accounted for.
+ */
+public class CloneManager {
+
+  private static final Logger log = LoggerFactory.getLogger(CloneManager.class);
+
+  public static final long UNLIMITED = Long.MAX_VALUE;
+
+  private final long diskBudget;
+
+  /**
+   * Clones by directory, least recently used first.
+   */
+  private final Map<String, ManagedClone> clones = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * Directories of the evicted clones being deleted.
+   */
+  private final Set<String> deleting = new HashSet<>();
+
+  private Consumer<File> evictionListener = cloneDir -> {};
+
+  public CloneManager() {
+    this(UNLIMITED);
+  }
+
+  /**
+   * @param diskBudget maximum number of bytes used by the clones, in use or idle
+   */
+  public CloneManager(long diskBudget) {
+    this.diskBudget = diskBudget;
+  }
+
+  /**
+   * Called with the clone directory after it was deleted.
+   */
+  void setEvictionListener(Consumer<File> evictionListener) {
+    this.evictionListener = evictionListener;
+  }
+
+  /**
+   * Mark the clone as in use: it will not be evicted until released. To be called before the clone is created or
+   * opened. Waits for the clone directory to be deleted if it was just evicted.
+   *
+   * @param cloneDir
+   */
+  synchronized void acquire(File cloneDir) {
+    String key = cloneDir.getAbsolutePath();
+    while(deleting.contains(key)) {
+      try {
+        wait();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new GitException(e);
+      }
+    }
+    clones.computeIfAbsent(key, k -> new ManagedClone(cloneDir)).references++;
+  }
+
+  /**
+   * Release the clone and evict idle clones if the disk budget is exceeded.
+   *
+   * @param cloneDir
+   * @param modified whether the clone content changed (clone, fetch or commit) and its size must be measured again
+   */
+  void release(File cloneDir, boolean modified) {
+    // the clone is still in use, measuring it is safe
+    long size = -1;
+    if(modified || getSize(cloneDir) < 0) size = measure(cloneDir);
+    List<ManagedClone> evicted;
+    synchronized(this) {
+      ManagedClone clone = clones.get(cloneDir.getAbsolutePath());
+      if(clone == null) return;
+      clone.references--;
+      if(size >= 0) clone.size = size;
+      evicted = evict();
+    }
+    // deleted without holding the monitor, the evicted clones cannot be acquired until deleted
+    evicted.forEach(this::delete);
+  }
+
+  /**
+   * Total size of the clones, in bytes.
+   *
+   * @return
+   */
+  public synchronized long getDiskUsage() {
+    return clones.values().stream().mapToLong(clone -> Math.max(clone.size, 0)).sum();
+  }
+
+  public synchronized int size() {
+    return clones.size();
+  }
+
+  private synchronized long getSize(File cloneDir) {
+    ManagedClone clone = clones.get(cloneDir.getAbsolutePath());
+    return clone == null ? -1 : clone.size;
+  }
+
+  /**
+   * Remove the least recently used idle clones until the disk budget is met.
+   *
+   * @return the evicted clones, to be deleted
+   */
+  private List<ManagedClone> evict() {
+    List<ManagedClone> evicted = new ArrayList<>();
+    long usage = getDiskUsage();
+    Iterator<ManagedClone> iterator = clones.values().iterator();
+    while(usage > diskBudget && iterator.hasNext()) {
+      ManagedClone clone = iterator.next();
+      if(clone.references > 0) continue;
+      log.debug("Evict clone {} ({} bytes)", clone.cloneDir.getAbsolutePath(), clone.size);
+      iterator.remove();
+      deleting.add(clone.cloneDir.getAbsolutePath());
+      evicted.add(clone);
+      usage -= Math.max(clone.size, 0);
+    }
+    return evicted;
+  }
+
+  private void delete(ManagedClone clone) {
+    try {
+      if(clone.cloneDir.exists()) FileUtil.delete(clone.cloneDir);
+    } catch(IOException e) {
+      log.error("Failed to remove clone folder {} ({}).", clone.cloneDir.getAbsolutePath(), e.getMessage());
+    } finally {
+      synchronized(this) {
+        deleting.remove(clone.cloneDir.getAbsolutePath());
+        notifyAll();
+      }
+    }
+    evictionListener.accept(clone.cloneDir);
+  }
+
+  private static long measure(File cloneDir) {
+    if(!cloneDir.exists()) return 0;
+    try(Stream<Path> files = Files.walk(cloneDir.toPath())) {
+      return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+    } catch(IOException | UncheckedIOException e) {
+      log.warn("Cannot measure clone {}: {}", cloneDir.getAbsolutePath(), e.getMessage());
+      return 0;
+    }
+  }
+
+  private static class ManagedClone {
+
+    private final File cloneDir;
+
+    private int references;
+
+    /**
+     * Size in bytes, negative if not measured yet.
+     */
+    private long size = -1;
+
+    private ManagedClone(File cloneDir) {
+      this.cloneDir = cloneDir;
+    }
+  }
+}
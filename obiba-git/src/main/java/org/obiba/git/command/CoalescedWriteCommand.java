@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.NoMessageException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.PushResult;
+import org.obiba.git.GitException;
+
+import com.google.common.base.Strings;
+import jakarta.annotation.Nullable;
+
+/**
+ * Changes of several write commands on the same repository, committed at once in the bare repository. The commit is
+ * authored by the first command author, the messages of all the commands are kept and the other authors are listed in
+ * 'Co-authored-by' trailers.
+ * <p>
+ * Each command is validated and staged on its own: a command that fails is left out of the commit and its failure is
+ * reported by {@link #getFailure(AbstractGitWriteCommand)}, the changes of the other commands are still committed.
+ */
+@SuppressWarnings("ClassTooDeepInInheritanceTree")
+class CoalescedWriteCommand extends AbstractGitWriteCommand {
+
+  private static final String CO_AUTHOR_TRAILER = "Co-authored-by: ";
+
+  private final List<AbstractGitWriteCommand> commands;
+
+  private final Map<AbstractGitWriteCommand, RuntimeException> failures = new IdentityHashMap<>();
+
+  @Nullable
+  private ObjectId commitId;
+
+  CoalescedWriteCommand(List<AbstractGitWriteCommand> commands) {
+    super(commands.get(0).getRepositoryPath(), null, null);
+    this.commands = commands;
+  }
+
+  @Override
+  public Iterable<PushResult> execute(Git git) {
+    if(!git.getRepository().isBare()) {
+      throw new GitException("Coalesced writes are committed in the bare repository");
+    }
+    try(InMemoryCommit commit = new InMemoryCommit(git.getRepository())) {
+      List<AbstractGitWriteCommand> staged = new ArrayList<>(commands.size());
+      for(AbstractGitWriteCommand command : commands) {
+        try {
+          if(Strings.isNullOrEmpty(command.getCommitMessage())) {
+            throw new GitException(new NoMessageException("Commit message not specified"));
+          }
+          if(!(command instanceof InMemoryWriteCommand inMemoryCommand)) {
+            throw new GitException(command.getClass().getSimpleName() + " cannot be committed without work tree");
+          }
+          commit.stage(inMemoryCommand);
+          staged.add(command);
+        } catch(IOException e) {
+          failures.put(command, new GitException(e));
+        } catch(RuntimeException e) {
+          failures.put(command, e);
+        }
+      }
+      if(staged.isEmpty()) return Collections.emptyList();
+
+      setCommitMessage(buildCommitMessage(staged));
+      setAuthorName(staged.get(0).getAuthorName());
+      setAuthorEmail(staged.get(0).getAuthorEmail());
+      commitId = commit(git, commit);
+      return Collections.emptyList();
+    } catch(IOException e) {
+      throw new GitException(e);
+    }
+  }
+
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
+  /**
+   * @return the id of the commit, null if none of the commands could be staged
+   */
+  @Nullable
+  ObjectId getCommitId() {
+    return commitId;
+  }
+
+  /**
+   * @param command
+   * @return the reason why the command was left out of the commit, null if it was committed
+   */
+  @Nullable
+  RuntimeException getFailure(AbstractGitWriteCommand command) {
+    return failures.get(command);
+  }
+
+  static String buildCommitMessage(List<AbstractGitWriteCommand> commands) {
+    if(commands.size() == 1) return commands.get(0).getCommitMessage();
+
+    StringBuilder message = new StringBuilder();
+    for(AbstractGitWriteCommand command : commands) {
+      String commandMessage = Strings.nullToEmpty(command.getCommitMessage()).strip();
+      if(commandMessage.isEmpty()) continue;
+      if(message.length() > 0) message.append("\n\n");
+      message.append(commandMessage);
+    }
+
+    String author = authorOf(commands.get(0));
+    Set<String> coAuthors = new LinkedHashSet<>();
+    for(AbstractGitWriteCommand command : commands) {
+      if(!author.equals(authorOf(command))) coAuthors.add(authorOf(command));
+    }
+    if(!coAuthors.isEmpty()) {
+      message.append("\n");
+      for(String coAuthor : coAuthors) {
+        message.append("\n").append(CO_AUTHOR_TRAILER).append(coAuthor);
+      }
+    }
+    return message.toString();
+  }
+
+  private static String authorOf(AbstractGitWriteCommand command) {
+    return command.getAuthorName() + " <" + command.getAuthorEmail() + ">";
+  }
+}
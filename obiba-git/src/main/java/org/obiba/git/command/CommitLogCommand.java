@@ -25,6 +25,7 @@ import org.eclipse.jgit.treewalk.TreeWalk;
 import org.obiba.git.CommitInfo;
 import org.obiba.git.GitException;
 import org.obiba.git.GitUtils;
+import org.obiba.git.PathHistoryIndex;
 import jakarta.annotation.Nullable;
 
 /**
@@ -56,6 +57,7 @@ public class CommitLogCommand extends AbstractGitCommand<CommitInfo> {
             .date(personIdent.getWhen()) //
             .comment(commit.getFullMessage()) //
             .commitId(commit.getName()) //
+            .current(PathHistoryIndex.isCurrent(getRepositoryPath(), repository, path, commit.getName())) //
             .head(GitUtils.isHead(repository, commitId)).build();
       }
     } catch(IOException e) {
@@ -64,6 +66,11 @@ public class CommitLogCommand extends AbstractGitCommand<CommitInfo> {
     throw new GitException("Path '%s' was not found in commit '%s'".formatted(path, commitId));
   }
 
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
   public static class Builder {
 
     private final CommitLogCommand command;
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.validation.constraints.NotNull;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.obiba.git.CommitInfo;
+import org.obiba.git.GitException;
+import org.obiba.git.GitUtils;
+import org.obiba.git.PathHistoryIndex;
+import jakarta.annotation.Nullable;
+
+/**
+ * Opal GIT command used to extract the logs of many repository paths, each for a specific commit, in one execution.
+ * Same as {@link CommitLogCommand} for each path and commit, the commits and trees are read with a single reader, the
+ * HEAD commit is resolved and the path history index is looked up once.
+ */
+public class CommitLogsCommand extends AbstractGitCommand<List<CommitInfo>> {
+
+  private final List<String> paths = new ArrayList<>();
+
+  private final List<String> commitIds = new ArrayList<>();
+
+  private CommitLogsCommand(@NotNull File repositoryPath, @Nullable File workPath) {
+    super(repositoryPath, workPath);
+  }
+
+  /**
+   * @return the commit infos in the order of the requested paths
+   */
+  @Override
+  public List<CommitInfo> execute(Git git) {
+    Repository repository = git.getRepository();
+    try(ObjectReader reader = repository.newObjectReader(); RevWalk walk = new RevWalk(reader)) {
+      ObjectId head = GitUtils.getHeadCommit(repository);
+      // the index is looked up once for all the paths
+      PathHistoryIndex index = null;
+      if(head != null) index = PathHistoryIndex.findMatching(getRepositoryPath(), repository, head);
+      List<CommitInfo> commitInfos = new ArrayList<>(paths.size());
+      for(int i = 0; i < paths.size(); i++) {
+        String path = paths.get(i);
+        String commitId = commitIds.get(i);
+        // commits already parsed by the walk are not read again
+        RevCommit commit = walk.parseCommit(ObjectId.fromString(commitId));
+        if(TreeWalk.forPath(reader, path, commit.getTree()) == null) {
+          throw new GitException("Path '%s' was not found in commit '%s'".formatted(path, commitId));
+        }
+        PersonIdent personIdent = commit.getAuthorIdent();
+        commitInfos.add(new CommitInfo.Builder().authorName(personIdent.getName()) //
+            .authorEmail(personIdent.getEmailAddress()) //
+            .date(personIdent.getWhen()) //
+            .comment(commit.getFullMessage()) //
+            .commitId(commit.getName()) //
+            .current(head != null && PathHistoryIndex.isCurrent(index, walk, head, path, commit.getName())) //
+            .head(commit.equals(head)).build());
+      }
+      return commitInfos;
+    } catch(IOException e) {
+      throw new GitException(e);
+    }
+  }
+
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
+  public static class Builder {
+
+    private final CommitLogsCommand command;
+
+    public Builder(@NotNull File repositoryPath) {
+      this(repositoryPath, null);
+    }
+
+    public Builder(@NotNull File repositoryPath, @Nullable File workPath) {
+      command = new CommitLogsCommand(repositoryPath, workPath);
+    }
+
+    public Builder add(@NotNull String path, @NotNull String commitId) {
+      command.paths.add(path);
+      command.commitIds.add(commitId);
+      return this;
+    }
+
+    public CommitLogsCommand build() {
+      return command;
+    }
+
+  }
+
+}
@@ -11,6 +11,7 @@
 package org.obiba.git.command;
 
 import java.io.File;
+import java.io.IOException;
 
 import jakarta.validation.constraints.NotNull;
 
@@ -21,7 +22,7 @@ import org.obiba.git.GitException;
 import jakarta.annotation.Nullable;
 
 @SuppressWarnings("ClassTooDeepInInheritanceTree")
-public class DeleteFilesCommand extends AbstractGitWriteCommand {
+public class DeleteFilesCommand extends AbstractGitWriteCommand implements InMemoryWriteCommand {
 
   private final String filePattern;
 
@@ -32,6 +33,7 @@ public class DeleteFilesCommand extends AbstractGitWriteCommand {
 
   @Override
   public Iterable<PushResult> execute(Git git) {
+    if(git.getRepository().isBare()) return executeBare(git, this);
     try {
       git.rm().addFilepattern(filePattern).call();
       return commitAndPush(git);
@@ -40,6 +42,16 @@ public class DeleteFilesCommand extends AbstractGitWriteCommand {
     }
   }
 
+  @Override
+  public void stage(InMemoryCommit commit) throws IOException {
+    commit.delete(filePattern);
+  }
+
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
   public static class Builder {
 
     private final DeleteFilesCommand command;
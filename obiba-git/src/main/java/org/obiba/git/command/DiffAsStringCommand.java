@@ -71,6 +71,11 @@ public class DiffAsStringCommand extends AbstractGitCommand<Iterable<String>> {
     }
   }
 
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
   @SuppressWarnings("ParameterHidesMemberVariable")
   public static class Builder {
 
@@ -47,6 +47,8 @@ public class DiffCommand extends AbstractGitCommand<Iterable<DiffEntry>> {
 
   private int nthCommit = 1;
 
+  private boolean detectRenames = true;
+
   protected DiffCommand(@NotNull File repositoryPath, @Nullable File workPath, String commitId) {
     super(repositoryPath, workPath);
     this.commitId = commitId;
@@ -68,13 +70,18 @@ public class DiffCommand extends AbstractGitCommand<Iterable<DiffEntry>> {
     }
   }
 
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
   private Iterable<DiffEntry> compareDiffTrees(Repository repository,
       DiffCurrentPreviousTreeParsersFactory parsersFactory) throws IOException {
 
     DiffFormatter diffFormatter = new DiffFormatter(null);
     diffFormatter.setRepository(repository);
     diffFormatter.setDiffComparator(RawTextComparator.DEFAULT);
-    diffFormatter.setDetectRenames(true);
+    diffFormatter.setDetectRenames(detectRenames);
     if(!Strings.isNullOrEmpty(path)) {
       diffFormatter.setPathFilter(PathFilter.create(path));
     }
@@ -163,6 +170,17 @@ public class DiffCommand extends AbstractGitCommand<Iterable<DiffEntry>> {
       return this;
     }
 
+    /**
+     * Rename detection compares the content of the added and deleted files, disable it for faster diffs.
+     *
+     * @param detectRenames
+     * @return
+     */
+    public Builder detectRenames(boolean detectRenames) {
+      command.detectRenames = detectRenames;
+      return this;
+    }
+
     public DiffCommand build() {
       return command;
     }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import jakarta.validation.constraints.NotNull;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.obiba.git.GitException;
+import jakarta.annotation.Nullable;
+
+/**
+ * Opal GIT command used to write the unified diff between two commits to the given output stream, file by file, instead
+ * of collecting the diff of each file as a string (see {@link DiffAsStringCommand}). The output stream is flushed but
+ * not closed.
+ */
+public class DiffStreamCommand extends AbstractGitCommand<Integer> {
+
+  public static final int DEFAULT_CONTEXT_LINES = 3;
+
+  private final OutputStream outputStream;
+
+  private String path;
+
+  private final String commitId;
+
+  private String previousCommitId;
+
+  private int nthCommit = 1;
+
+  private boolean detectRenames = true;
+
+  private int contextLines = DEFAULT_CONTEXT_LINES;
+
+  private int binaryFileThreshold = PackConfig.DEFAULT_BIG_FILE_THRESHOLD;
+
+  protected DiffStreamCommand(@NotNull File repositoryPath, @Nullable File workPath, String commitId,
+      OutputStream outputStream) {
+    super(repositoryPath, workPath);
+    this.commitId = commitId;
+    this.outputStream = outputStream;
+  }
+
+  /**
+   * @return the number of files in the diff
+   */
+  @Override
+  public Integer execute(Git git) {
+    DiffCommand diffCommand = new DiffCommand.Builder(getRepositoryPath(), commitId).path(path)
+        .previousCommitId(previousCommitId).nthCommit(nthCommit).detectRenames(detectRenames).build();
+    BufferedOutputStream out = new BufferedOutputStream(outputStream);
+    try(DiffFormatter formatter = new DiffFormatter(out)) {
+      formatter.setRepository(git.getRepository());
+      formatter.setDiffComparator(RawTextComparator.DEFAULT);
+      formatter.setContext(contextLines);
+      formatter.setBinaryFileThreshold(binaryFileThreshold);
+      int count = 0;
+      for(DiffEntry diffEntry : diffCommand.execute(git)) {
+        formatter.format(diffEntry);
+        count++;
+      }
+      formatter.flush();
+      return count;
+    } catch(IOException e) {
+      throw new GitException(e);
+    }
+  }
+
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
+  @SuppressWarnings("ParameterHidesMemberVariable")
+  public static class Builder {
+
+    private final DiffStreamCommand command;
+
+    public Builder(@NotNull File repositoryPath, String commitId, @NotNull OutputStream outputStream) {
+      this(repositoryPath, null, commitId, outputStream);
+    }
+
+    public Builder(@NotNull File repositoryPath, @Nullable File workPath, String commitId,
+        @NotNull OutputStream outputStream) {
+      command = new DiffStreamCommand(repositoryPath, workPath, commitId, outputStream);
+    }
+
+    public Builder path(String path) {
+      command.path = path;
+      return this;
+    }
+
+    public Builder previousCommitId(String previousCommitId) {
+      command.previousCommitId = previousCommitId;
+      return this;
+    }
+
+    public Builder nthCommit(int nthCommit) {
+      command.nthCommit = nthCommit;
+      return this;
+    }
+
+    /**
+     * @see DiffCommand.Builder#detectRenames(boolean)
+     */
+    public Builder detectRenames(boolean detectRenames) {
+      command.detectRenames = detectRenames;
+      return this;
+    }
+
+    /**
+     * Number of unchanged lines around each change.
+     *
+     * @param contextLines
+     * @return
+     */
+    public Builder contextLines(int contextLines) {
+      command.contextLines = contextLines;
+      return this;
+    }
+
+    /**
+     * Files larger than this number of bytes are not compared: the diff only reports that they differ.
+     *
+     * @param binaryFileThreshold
+     * @return
+     */
+    public Builder binaryFileThreshold(int binaryFileThreshold) {
+      command.binaryFileThreshold = binaryFileThreshold;
+      return this;
+    }
+
+    public DiffStreamCommand build() {
+      return command;
+    }
+  }
+
+}
@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+/**
+ * Command that does not commit but must not run concurrently with any other command on the repository: it is executed
+ * against the bare repository while holding the repository write lock.
+ */
+interface ExclusiveGitCommand<T> extends GitCommand<T> {
+}
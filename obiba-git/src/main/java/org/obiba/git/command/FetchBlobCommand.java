@@ -29,7 +29,8 @@ import jakarta.annotation.Nullable;
 /**
  * Opal GIT command used to extract the content of a file. Folders are not supported.
  */
-public class FetchBlobCommand extends AbstractGitCommand<String> {
+public class FetchBlobCommand extends AbstractGitCommand<String>
+    implements CacheableBlobCommand<String> {
 
   private final String path;
 
@@ -49,13 +50,37 @@ public class FetchBlobCommand extends AbstractGitCommand<String> {
     try {
       ReadFileCommand readFileCommand = new ReadFileCommand.Builder(getRepositoryPath(), path).commitId(commitId)
           .tag(tag).build();
-      InputStream inputStream = readFileCommand.execute(git);
-      return CharStreams.toString(new InputStreamReader(inputStream, getEncoding()));
+      try(InputStream inputStream = readFileCommand.execute(git)) {
+        return CharStreams.toString(new InputStreamReader(inputStream, getEncoding()));
+      }
     } catch(IOException e) {
       throw new GitException(e);
     }
   }
 
+  @Override
+  public boolean requiresWorkTree() {
+    // current revision is read from the work tree
+    return Strings.isNullOrEmpty(tag) && Strings.isNullOrEmpty(commitId);
+  }
+
+  @Override
+  @Nullable
+  public String getCommitId() {
+    // a tag may be moved
+    return Strings.isNullOrEmpty(tag) ? commitId : null;
+  }
+
+  @Override
+  public String getPath() {
+    return path;
+  }
+
+  @Override
+  public String fromBlob(byte[] content) {
+    return new String(content, getEncoding());
+  }
+
   private Charset getEncoding() {
     return Strings.isNullOrEmpty(encoding) ? Charsets.UTF_8 : Charset.forName(encoding);
   }
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.File;
+import java.util.Date;
+
+import jakarta.validation.constraints.NotNull;
+
+import org.eclipse.jgit.api.GarbageCollectCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.obiba.git.GitException;
+import org.obiba.git.MaintenanceInfo;
+import org.obiba.git.PackStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs the loose objects and refs of the bare repository and prunes the unreachable objects, with the repository
+ * write lock held.
+ */
+public class GarbageCollectionCommand extends AbstractGitCommand<MaintenanceInfo>
+    implements ExclusiveGitCommand<MaintenanceInfo> {
+
+  private static final Logger log = LoggerFactory.getLogger(GarbageCollectionCommand.class);
+
+  private boolean aggressive;
+
+  private GarbageCollectionCommand(@NotNull File repositoryPath) {
+    super(repositoryPath);
+  }
+
+  @Override
+  public MaintenanceInfo execute(Git git) {
+    try {
+      long start = System.currentTimeMillis();
+      GarbageCollectCommand gc = git.gc().setAggressive(aggressive);
+      PackStatistics before = PackStatistics.fromGcStatistics(gc.getStatistics());
+      PackStatistics after = PackStatistics.fromGcStatistics(gc.call());
+      MaintenanceInfo info = new MaintenanceInfo.Builder() //
+          .repositoryPath(getRepositoryPath().getAbsolutePath()) //
+          .date(new Date(start)) //
+          .durationMillis(System.currentTimeMillis() - start) //
+          .before(before) //
+          .after(after) //
+          .build();
+      log.debug("Garbage collection of {}", info);
+      return info;
+    } catch(GitAPIException e) {
+      throw new GitException(e);
+    }
+  }
+
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
+  @SuppressWarnings("ParameterHidesMemberVariable")
+  public static class Builder {
+
+    private final GarbageCollectionCommand command;
+
+    public Builder(@NotNull File repositoryPath) {
+      command = new GarbageCollectionCommand(repositoryPath);
+    }
+
+    public Builder aggressive(boolean aggressive) {
+      command.aggressive = aggressive;
+      return this;
+    }
+
+    public GarbageCollectionCommand build() {
+      return command;
+    }
+  }
+}
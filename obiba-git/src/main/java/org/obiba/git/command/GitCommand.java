@@ -40,5 +40,14 @@ public interface GitCommand<T> {
    * @return
    */
   boolean deleteClone();
+
+  /**
+   * Whether the command needs the work tree of a clone. Commands that only use the object database and the refs can be
+   * executed directly against the bare repository. Defaults to true, which is always safe.
+   * @return
+   */
+  default boolean requiresWorkTree() {
+    return true;
+  }
 }
 
@@ -12,85 +12,495 @@ package org.obiba.git.command;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
 import org.eclipse.jgit.api.CloneCommand;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.transport.RefSpec;
 import org.obiba.core.util.FileUtil;
 import org.obiba.git.GitException;
+import org.obiba.git.command.GitMetricsListener.Phase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import com.google.common.base.Charsets;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
 
 @Component
 public class GitCommandHandler {
 
   private static final Logger log = LoggerFactory.getLogger(GitCommandHandler.class);
 
+  public static final int DEFAULT_MAX_QUEUE_DEPTH = 64;
+
   private static final List<RefSpec> DEFAULT_REF_SPEC = Lists.newArrayList( //
       new RefSpec("+refs/heads/*:refs/remotes/origin/*"), //
       new RefSpec("+refs/tags/*:refs/tags/*"), //
       new RefSpec("+refs/notes/*:refs/notes/*"));
 
-  private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock(true);
-
-  private final LoadingCache<String, Lock> readLocks = CacheBuilder.newBuilder() //
-      .build(new CacheLoader<String, Lock>() {
+  /**
+   * One fair read/write lock per bare repository path. Values are weakly referenced: a lock is kept as long as a command
+   * holds it and is reclaimed once the repository is idle, so the storage stays bounded by the number of repositories
+   * in use.
+   */
+  private final LoadingCache<String, ReadWriteLock> repositoryLocks = CacheBuilder.newBuilder() //
+      .weakValues() //
+      .build(new CacheLoader<String, ReadWriteLock>() {
                @Override
-               public Lock load(@SuppressWarnings("NullableProblems") String key) throws Exception {
-                 log.trace("Create read lock for {}", key);
-                 return readWriteLock.readLock();
+               public ReadWriteLock load(@SuppressWarnings("NullableProblems") String key) throws Exception {
+                 log.trace("Create read/write lock for {}", key);
+                 return new ReentrantReadWriteLock(true);
                }
              }
       );
 
-  private final LoadingCache<String, Lock> writeLocks = CacheBuilder.newBuilder() //
-      .build(new CacheLoader<String, Lock>() {
-               @Override
-               public Lock load(@SuppressWarnings("NullableProblems") String key) throws Exception {
-                 log.trace("Create write lock for {}", key);
-                 return readWriteLock.writeLock();
-               }
-             }
-      );
+  /**
+   * Snapshot of the bare repository refs, per clone directory, at the time of the last fetch. The fetch is skipped when
+   * the bare repository refs did not change since then.
+   */
+  private final Map<String, HashCode> fetchedRefs = new ConcurrentHashMap<>();
+
+  /**
+   * Commands holding the read lock share the pooled clones: the fetch and the reset of a clone are serialized, so that
+   * only the first command updates the clone and the others see it updated.
+   */
+  private final Striped<Lock> cloneFetchLocks = Striped.lock(64);
+
+  /**
+   * When enabled, commands that do not require a work tree are executed against the bare repository: no clone and no
+   * fetch.
+   */
+  private boolean bareReadEnabled = true;
+
+  /**
+   * When enabled, write commands that do not require a work tree commit directly in the bare repository. Clones are
+   * reset to the bare repository branch on their next fetch.
+   */
+  private boolean bareWriteEnabled = false;
+
+  private RepositoryPool repositoryPool = new RepositoryPool();
+
+  @Nullable
+  private BlobCache blobCache;
+
+  @Nullable
+  private WriteCoalescer writeCoalescer;
+
+  /**
+   * Set once the handler is destroyed: commands can no longer be queued.
+   */
+  private volatile boolean destroyed;
+
+  private int maxQueueDepth = DEFAULT_MAX_QUEUE_DEPTH;
+
+  /**
+   * Number of asynchronous commands queued or running, per repository path.
+   */
+  private final Map<String, Integer> queueDepths = new ConcurrentHashMap<>();
+
+  private final ExecutorService asyncExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+  /**
+   * Order of the asynchronous commands, per repository path.
+   */
+  private final Map<String, AsyncQueue> asyncQueues = new HashMap<>();
+
+  /**
+   * Number of commands holding the lock, per repository path.
+   */
+  private final Map<String, Integer> activeLocks = new ConcurrentHashMap<>();
+
+  private GitMetricsListener metricsListener = GitMetricsListener.NOOP;
+
+  private CloneManager cloneManager;
+
+  /**
+   * Repositories to be cloned at startup, in the pre-warm work path.
+   */
+  private List<File> prewarmRepositories = Collections.emptyList();
+
+  @Nullable
+  private File prewarmWorkPath;
+
+  @Nullable
+  private MaintenanceScheduler maintenanceScheduler;
+
+  public GitCommandHandler() {
+    setCloneManager(new CloneManager());
+  }
+
+  public void setBareReadEnabled(boolean bareReadEnabled) {
+    this.bareReadEnabled = bareReadEnabled;
+  }
+
+  public void setBareWriteEnabled(boolean bareWriteEnabled) {
+    this.bareWriteEnabled = bareWriteEnabled;
+  }
+
+  public void setRepositoryPool(RepositoryPool repositoryPool) {
+    this.repositoryPool = repositoryPool;
+  }
+
+  /**
+   * Optional cache of file contents read at a given commit.
+   *
+   * @param blobCache
+   */
+  public void setBlobCache(@Nullable BlobCache blobCache) {
+    this.blobCache = blobCache;
+  }
+
+  /**
+   * Manager of the clones kept between commands, see {@link CloneManager}.
+   *
+   * @param cloneManager
+   */
+  public void setCloneManager(CloneManager cloneManager) {
+    cloneManager.setEvictionListener(this::onCloneEvicted);
+    this.cloneManager = cloneManager;
+  }
+
+  /**
+   * Repositories to be cloned in parallel in the work path at startup, so that the first commands on these
+   * repositories do not wait for the clone.
+   *
+   * @param workPath
+   * @param repositoryPaths
+   */
+  public void setPrewarmRepositories(File workPath, List<File> repositoryPaths) {
+    prewarmWorkPath = workPath;
+    prewarmRepositories = repositoryPaths;
+  }
+
+  /**
+   * Scheduler of the garbage collection of the repositories that are written, started right away.
+   *
+   * @param maintenanceScheduler
+   */
+  public synchronized void setMaintenanceScheduler(@Nullable MaintenanceScheduler maintenanceScheduler) {
+    if(this.maintenanceScheduler != null) this.maintenanceScheduler.stop();
+    this.maintenanceScheduler = maintenanceScheduler;
+    if(maintenanceScheduler != null) maintenanceScheduler.start(this);
+  }
+
+  /**
+   * Listener of the command timings and of the repository queues and locks.
+   *
+   * @param metricsListener
+   */
+  public void setMetricsListener(GitMetricsListener metricsListener) {
+    this.metricsListener = metricsListener == null ? GitMetricsListener.NOOP : metricsListener;
+  }
+
+  /**
+   * Maximum number of asynchronous commands queued or running on a repository, beyond which commands are rejected.
+   *
+   * @param maxQueueDepth
+   */
+  public void setMaxQueueDepth(int maxQueueDepth) {
+    this.maxQueueDepth = maxQueueDepth;
+  }
+
+  /**
+   * Coalesce the writes submitted with {@link #executeCoalesced(GitWriteCommand)}: the writes on the same repository
+   * submitted within the time window are committed at once, up to the given number of writes per commit.
+   *
+   * @param window
+   * @param maxWrites
+   */
+  public synchronized void setWriteCoalescing(Duration window, int maxWrites) {
+    if(maxWrites < 1) throw new IllegalArgumentException("Maximum number of writes per commit must be positive");
+    if(writeCoalescer != null) writeCoalescer.shutdown();
+    writeCoalescer = new WriteCoalescer(this, window.toMillis(), maxWrites);
+  }
+
+  @PostConstruct
+  public void init() {
+    if(prewarmWorkPath != null && !prewarmRepositories.isEmpty()) prewarm(prewarmRepositories, prewarmWorkPath);
+  }
+
+  /**
+   * Clone or fetch the repositories in parallel, in the given work path.
+   *
+   * @param repositoryPaths
+   * @param workPath
+   * @return completed when all the repositories are cloned
+   */
+  public CompletableFuture<Void> prewarm(Collection<File> repositoryPaths, File workPath) {
+    return CompletableFuture.allOf(repositoryPaths.stream() //
+        .map(repositoryPath -> CompletableFuture //
+            .runAsync(() -> executeLocked(new PrewarmCommand(repositoryPath, workPath), false), asyncExecutor) //
+            .whenComplete((result, e) -> {
+              if(e != null) log.warn("Failed to pre-warm clone of {}: {}", repositoryPath, e.getMessage());
+            })) //
+        .toArray(CompletableFuture[]::new));
+  }
+
+  @PreDestroy
+  public void destroy() {
+    synchronized(this) {
+      destroyed = true;
+      if(writeCoalescer != null) writeCoalescer.shutdown();
+      writeCoalescer = null;
+      if(maintenanceScheduler != null) maintenanceScheduler.stop();
+    }
+    // wait for the asynchronous commands before closing the repositories
+    List<CompletableFuture<Void>> pending = new ArrayList<>();
+    synchronized(asyncQueues) {
+      asyncQueues.values().forEach(queue -> queue.addPending(pending));
+    }
+    CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+    asyncExecutor.close();
+    repositoryPool.clear();
+  }
+
+  /**
+   * Queue a write command to be committed in the bare repository, possibly together with other queued writes on the
+   * same repository, see {@link #setWriteCoalescing(Duration, int)}. Without coalescing settings, each write is
+   * committed on its own. Only the commands adding or deleting files can be queued.
+   * <p>
+   * The input streams of the command are read later, in another thread, when its batch is committed: the caller must
+   * not close them before the returned future is completed. A command that cannot be staged (no commit message,
+   * unreadable stream, ...) fails alone and the other writes of its batch are committed, while a failure of the commit
+   * itself fails all the writes of the batch.
+   *
+   * @param command
+   * @return the id of the commit including the changes of the command
+   * @throws RejectedExecutionException if the handler was destroyed
+   */
+  public CompletableFuture<String> executeCoalesced(GitWriteCommand command) {
+    if(!(command instanceof InMemoryWriteCommand && command instanceof AbstractGitWriteCommand writeCommand)) {
+      throw new IllegalArgumentException("Write command cannot be coalesced: " + command.getClass().getSimpleName());
+    }
+    synchronized(this) {
+      if(destroyed) throw new RejectedExecutionException("Git command handler is destroyed");
+      if(writeCoalescer == null) writeCoalescer = new WriteCoalescer(this, 0, 1);
+      // submitted before the coalescer can be replaced and shut down
+      return writeCoalescer.submit(writeCommand);
+    }
+  }
+
+  /**
+   * Execute the command in a virtual thread. The commands of a repository are started in submission order with respect
+   * to the writes: a write (or an exclusive command) starts once all the commands submitted before it are done, and a
+   * command submitted after a write starts once the write is done. The reads submitted between two writes run
+   * concurrently. A command is rejected right away when the repository already has the maximum number of commands
+   * queued or running, see {@link #setMaxQueueDepth(int)}.
+   *
+   * @param command
+   * @return
+   * @throws RejectedExecutionException if the repository queue is full or if the handler was destroyed
+   */
+  public <T> CompletableFuture<T> executeAsync(GitCommand<T> command) {
+    if(command instanceof AbstractGitWriteCommand writeCommand) {
+      // the author is resolved in the caller thread, where its security context is
+      writeCommand.setAuthorName(writeCommand.getAuthorName());
+      writeCommand.setAuthorEmail(writeCommand.getAuthorEmail());
+    }
+    File repositoryPath = command.getRepositoryPath();
+    String key = repositoryPath.getAbsolutePath();
+    AtomicBoolean rejected = new AtomicBoolean();
+    Integer depth = queueDepths.compute(key, (k, d) -> {
+      int current = d == null ? 0 : d;
+      if(current >= maxQueueDepth) {
+        rejected.set(true);
+        return d;
+      }
+      return current + 1;
+    });
+    if(rejected.get()) {
+      throw new RejectedExecutionException("Too many commands queued on " + key);
+    }
+    // the listener is not called within the atomic update, it could block the other repositories
+    metricsListener.onQueueDepth(repositoryPath, depth);
+    boolean exclusive = command instanceof GitWriteCommand || command instanceof ExclusiveGitCommand;
+    CompletableFuture<T> future;
+    synchronized(asyncQueues) {
+      // commands queued before are awaited by destroy, the ones queued after could not be executed
+      if(destroyed) {
+        dequeue(repositoryPath);
+        throw new RejectedExecutionException("Git command handler is destroyed");
+      }
+      AsyncQueue queue = asyncQueues.computeIfAbsent(key, k -> new AsyncQueue());
+      // a rejected dispatch fails the future, so that it is dequeued
+      future = queue.predecessors(exclusive)
+          .thenCompose(v -> CompletableFuture.supplyAsync(() -> execute(command), asyncExecutor));
+      queue.add(future, exclusive).thenRun(() -> releaseAsyncQueue(key, queue));
+    }
+    return future.whenComplete((result, e) -> dequeue(repositoryPath));
+  }
+
+  private void releaseAsyncQueue(String key, AsyncQueue queue) {
+    synchronized(asyncQueues) {
+      if(queue.isDone()) asyncQueues.remove(key, queue);
+    }
+  }
+
+  private void dequeue(File repositoryPath) {
+    Integer depth = queueDepths.computeIfPresent(repositoryPath.getAbsolutePath(), (k, d) -> d == 1 ? null : d - 1);
+    metricsListener.onQueueDepth(repositoryPath, depth == null ? 0 : depth);
+  }
+
+  /**
+   * Number of asynchronous commands queued or running on the repository.
+   *
+   * @param repositoryPath
+   * @return
+   */
+  public int getQueueDepth(File repositoryPath) {
+    return queueDepths.getOrDefault(repositoryPath.getAbsolutePath(), 0);
+  }
 
   public <T> T execute(GitCommand<T> command) {
-    lock(command);
+    if(blobCache != null && command instanceof CacheableBlobCommand<T> blobCommand
+        && BlobCache.isCacheable(blobCommand.getCommitId())) {
+      return executeCached(blobCommand, blobCache);
+    }
+    if(command instanceof SnapshotGitCommand<T> snapshotCommand) {
+      return complete(snapshotCommand, executeLocked(command));
+    }
+    return executeLocked(command);
+  }
+
+  private <T> T complete(SnapshotGitCommand<T> command, T result) {
+    Repository repository;
+    try {
+      // the repository is not closed while in use, even if the pool is cleared
+      repository = repositoryPool.acquire(command.getRepositoryPath());
+    } catch(IOException e) {
+      throw new GitException(e);
+    }
+    try {
+      return command.complete(result, new Git(repository));
+    } finally {
+      repositoryPool.release(repository);
+    }
+  }
+
+  private <T> T executeCached(CacheableBlobCommand<T> command, BlobCache cache) {
+    byte[] content = cache.getIfPresent(command.getRepositoryPath(), command.getCommitId(), command.getPath());
+    return content == null ? executeLocked(cache.newLoadCommand(command)) : command.fromBlob(content);
+  }
+
+  private <T> T executeLocked(GitCommand<T> command) {
+    boolean bare = command instanceof ExclusiveGitCommand
+        || (command instanceof GitWriteCommand ? bareWriteEnabled : bareReadEnabled) && !command.requiresWorkTree();
+    return executeLocked(command, bare);
+  }
+
+  <T> T executeLocked(GitCommand<T> command, boolean bare) {
+    // the read/write lock must stay strongly reachable until it is released, see repositoryLocks
+    ReadWriteLock readWriteLock = getReadWriteLock(command.getRepositoryPath());
+    boolean write = command instanceof GitWriteCommand;
+    boolean exclusive = write || command instanceof ExclusiveGitCommand;
+    Lock lock = exclusive ? readWriteLock.writeLock() : readWriteLock.readLock();
+    File repositoryPath = command.getRepositoryPath();
+    long start = System.nanoTime();
+    lock(command, lock);
+    record(Phase.LOCK_WAIT, command, start);
+    boolean pooled = bare || !command.deleteClone();
     Git git = null;
+    File managedClone = null;
+    boolean cloneModified = write;
+    boolean succeeded = false;
     try {
 
-      File repositoryPath = command.getRepositoryPath();
-      git = new Git(getLocalRepository(repositoryPath, command.getWorkPath()));
+      if(bare) {
+        git = new Git(getBareRepository(repositoryPath));
+        T result = executeTimed(command, git);
+        succeeded = true;
+        return result;
+      }
 
-      fetchAllRepository(git);
-      return command.execute(git);
+      File cloneDir = getCloneDir(repositoryPath, command.getWorkPath());
+      if(pooled) {
+        // clone is kept: protect it from eviction before it is created or opened
+        cloneManager.acquire(cloneDir);
+        managedClone = cloneDir;
+      }
+      if(!cloneDir.exists()) cloneModified = true;
+      git = new Git(getLocalRepository(repositoryPath, cloneDir, pooled));
+      start = System.nanoTime();
+      if(fetchAllRepository(git, repositoryPath)) cloneModified = true;
+      record(Phase.FETCH, command, start);
+      T result = executeTimed(command, git);
+      succeeded = true;
+      return result;
 
     } catch(IOException | GitAPIException e) {
       throw new GitException(e);
     } finally {
       if(git != null) {
-        git.close();
-        if(command.deleteClone()) deleteLocalRepository(git);
+        if(pooled) repositoryPool.release(git.getRepository());
+        else git.getRepository().close();
+        if(!bare && command.deleteClone()) {
+          start = System.nanoTime();
+          deleteLocalRepository(git);
+          record(Phase.DELETE_CLONE, command, start);
+        }
       }
-      unlock(command);
+      if(managedClone != null) cloneManager.release(managedClone, cloneModified);
+      // the bare repository was modified through the clone or repacked
+      if(write && !bare || exclusive && !write) repositoryPool.invalidate(repositoryPath);
+      // failed or rejected writes did not add anything to collect
+      if(write && succeeded && maintenanceScheduler != null) maintenanceScheduler.recordWrite(repositoryPath);
+      unlock(command, lock);
+      Reference.reachabilityFence(readWriteLock);
     }
   }
 
+  private <T> T executeTimed(GitCommand<T> command, Git git) {
+    long start = System.nanoTime();
+    try {
+      return command.execute(git);
+    } finally {
+      record(Phase.EXECUTE, command, start);
+    }
+  }
+
+  private void record(Phase phase, GitCommand<?> command, long start) {
+    metricsListener.onTiming(phase, command.getClass(), command.getRepositoryPath(), System.nanoTime() - start);
+  }
+
   private void deleteLocalRepository(Git git) {
+    fetchedRefs.remove(git.getRepository().getDirectory().getAbsolutePath());
     File repoFile = git.getRepository().getWorkTree();
     try {
       if(repoFile.exists()) FileUtil.delete(repoFile);
@@ -99,35 +509,50 @@ public class GitCommandHandler {
     }
   }
 
-  private void lock(GitCommand<?> command) {
+  private void lock(GitCommand<?> command, Lock lock) {
     log.trace("Lock for {}", command.getRepositoryPath().getAbsolutePath());
-    getLock(command).lock();
+    lock.lock();
+    int count = activeLocks.merge(command.getRepositoryPath().getAbsolutePath(), 1, Integer::sum);
+    metricsListener.onActiveLocks(command.getRepositoryPath(), count);
   }
 
-  private void unlock(GitCommand<?> command) {
+  private void unlock(GitCommand<?> command, Lock lock) {
     log.trace("Unlock for {}", command.getRepositoryPath().getAbsolutePath());
-    getLock(command).unlock();
+    Integer count = activeLocks.computeIfPresent(command.getRepositoryPath().getAbsolutePath(),
+        (k, c) -> c == 1 ? null : c - 1);
+    lock.unlock();
+    metricsListener.onActiveLocks(command.getRepositoryPath(), count == null ? 0 : count);
   }
 
-  private synchronized Lock getLock(GitCommand<?> command) {
+  ReadWriteLock getReadWriteLock(File repositoryPath) {
     try {
-      String path = command.getRepositoryPath().getAbsolutePath();
-      return command instanceof GitWriteCommand ? writeLocks.get(path) : readLocks.get(path);
+      return repositoryLocks.get(repositoryPath.getAbsolutePath());
     } catch(ExecutionException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private Repository getLocalRepository(File repositoryPath, File localRepoDir) throws IOException, GitAPIException {
+  private Repository getBareRepository(File repositoryPath) throws IOException {
     if(!repositoryPath.exists()) {
-      createBareRepository(repositoryPath);
+      createBareRepository(repositoryPath).close();
     }
+    log.debug("Using bare repository {}", repositoryPath.getAbsolutePath());
+    return repositoryPool.acquire(repositoryPath);
+  }
 
+  private File getCloneDir(File repositoryPath, File localRepoDir) {
     String name = repositoryPath.getName();
     name = name.substring(0, name.lastIndexOf(".git"));
+    return new File(localRepoDir, name);
+  }
 
-    File cloneDir = new File(localRepoDir, name);
-    Repository repository;
+  private Repository getLocalRepository(File repositoryPath, File cloneDir, boolean pooled)
+      throws IOException, GitAPIException {
+    if(!repositoryPath.exists()) {
+      createBareRepository(repositoryPath).close();
+    }
+
+    File gitDir = new File(cloneDir, ".git");
 
     if(!cloneDir.exists()) {
       CloneCommand clone = new CloneCommand();
@@ -135,11 +560,14 @@ public class GitCommandHandler {
       clone.setCloneAllBranches(true);
       clone.setURI("file://" + repositoryPath.getAbsolutePath());
       clone.setDirectory(cloneDir);
-      repository = clone.call().getRepository();
-    } else {
-      repository = new FileRepository(new File(cloneDir, ".git"));
+      try(Git cloned = clone.call()) {
+        gitDir = cloned.getRepository().getDirectory();
+      }
+      // a fresh clone is up to date with the bare repository
+      fetchedRefs.put(gitDir.getAbsolutePath(), getRefsSnapshot(repositoryPath));
     }
 
+    Repository repository = pooled ? repositoryPool.acquire(gitDir) : new FileRepository(gitDir);
     log.debug("Using clone of {}: {}", repositoryPath.getAbsolutePath(), repository.getWorkTree().getAbsolutePath());
     return repository;
   }
@@ -151,8 +579,127 @@ public class GitCommandHandler {
     return repository;
   }
 
-  private FetchResult fetchAllRepository(Git git) throws GitAPIException {
-    return git.fetch().setRefSpecs(DEFAULT_REF_SPEC).call();
+  /**
+   * @return whether the clone was fetched
+   */
+  private boolean fetchAllRepository(Git git, File repositoryPath) throws IOException, GitAPIException {
+    String cloneKey = git.getRepository().getDirectory().getAbsolutePath();
+    Lock cloneLock = cloneFetchLocks.get(cloneKey);
+    cloneLock.lock();
+    try {
+      HashCode refs = getRefsSnapshot(repositoryPath);
+      if(refs.equals(fetchedRefs.get(cloneKey))) {
+        log.trace("No changes in {} since last fetch", repositoryPath.getAbsolutePath());
+        metricsListener.onFetch(repositoryPath, false);
+        return false;
+      }
+      git.fetch().setRefSpecs(DEFAULT_REF_SPEC).call();
+      resetToRemoteBranch(git);
+      fetchedRefs.put(cloneKey, refs);
+      metricsListener.onFetch(repositoryPath, true);
+      return true;
+    } finally {
+      cloneLock.unlock();
+    }
+  }
+
+  private void onCloneEvicted(File cloneDir) {
+    File gitDir = new File(cloneDir, ".git");
+    fetchedRefs.remove(gitDir.getAbsolutePath());
+    repositoryPool.invalidate(gitDir);
+  }
+
+  /**
+   * Move the clone branch to the fetched one, which differs when commits were made directly in the bare repository.
+   * Called with the clone fetch lock held: the other commands on the clone wait for the reset before reading it.
+   */
+  private void resetToRemoteBranch(Git git) throws IOException, GitAPIException {
+    Repository repository = git.getRepository();
+    Ref remote = repository.exactRef(Constants.R_REMOTES + "origin/" + repository.getBranch());
+    if(remote == null || remote.getObjectId().equals(repository.resolve(Constants.HEAD))) return;
+    log.debug("Reset {} to {}", repository.getWorkTree().getAbsolutePath(), remote.getObjectId().getName());
+    git.reset().setMode(ResetCommand.ResetType.HARD).setRef(remote.getName()).call();
+  }
+
+  /**
+   * Hash of the names and targets of all the refs of the bare repository.
+   */
+  private HashCode getRefsSnapshot(File repositoryPath) throws IOException {
+    Repository repository = repositoryPool.acquire(repositoryPath);
+    try {
+      List<Ref> refs = new ArrayList<>(repository.getRefDatabase().getRefs());
+      refs.sort(Comparator.comparing(Ref::getName));
+      Hasher hasher = Hashing.murmur3_128().newHasher();
+      for(Ref ref : refs) {
+        hasher.putString(ref.getName(), Charsets.UTF_8).putString(ObjectId.toString(ref.getObjectId()), Charsets.UTF_8);
+      }
+      return hasher.hash();
+    } finally {
+      repositoryPool.release(repository);
+    }
+  }
+
+  /**
+   * Asynchronous commands of a repository: the last exclusive command and the shared commands submitted after it.
+   * Failures do not propagate to the next commands.
+   */
+  private static class AsyncQueue {
+
+    private CompletableFuture<Void> lastExclusive = CompletableFuture.completedFuture(null);
+
+    private final List<CompletableFuture<Void>> shared = new ArrayList<>();
+
+    /**
+     * @param exclusive
+     * @return the commands that must be done before the command starts
+     */
+    private CompletableFuture<Void> predecessors(boolean exclusive) {
+      if(!exclusive || shared.isEmpty()) return lastExclusive;
+      List<CompletableFuture<Void>> commands = new ArrayList<>(shared);
+      commands.add(lastExclusive);
+      return CompletableFuture.allOf(commands.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * @param future
+     * @param exclusive
+     * @return completed when the command is done, successfully or not
+     */
+    private CompletableFuture<Void> add(CompletableFuture<?> future, boolean exclusive) {
+      CompletableFuture<Void> done = future.handle((result, e) -> null);
+      if(exclusive) {
+        lastExclusive = done;
+        shared.clear();
+      } else {
+        shared.removeIf(CompletableFuture::isDone);
+        shared.add(done);
+      }
+      return done;
+    }
+
+    private boolean isDone() {
+      return lastExclusive.isDone() && shared.stream().allMatch(CompletableFuture::isDone);
+    }
+
+    private void addPending(List<CompletableFuture<Void>> pending) {
+      pending.add(lastExclusive);
+      pending.addAll(shared);
+    }
+  }
+
+  /**
+   * Clones or fetches the repository, nothing else.
+   */
+  private static class PrewarmCommand extends AbstractGitCommand<Void> {
+
+    private PrewarmCommand(File repositoryPath, File workPath) {
+      super(repositoryPath, workPath);
+    }
+
+    @Override
+    public Void execute(Git git) {
+      return null;
+    }
   }
 
 }
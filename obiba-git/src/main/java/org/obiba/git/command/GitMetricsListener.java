@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.File;
+
+/**
+ * Receives the timings of the commands executed by {@link GitCommandHandler} and the state of the repository queues and
+ * locks. Implementations are called from the command threads and must be thread safe and fast. The gauges are reported
+ * right after their value is atomically updated: the values reported concurrently by several threads may be received
+ * out of order.
+ */
+public interface GitMetricsListener {
+
+  /**
+   * Phases of a command execution.
+   */
+  enum Phase {
+    /**
+     * Waiting for the repository read or write lock.
+     */
+    LOCK_WAIT,
+    /**
+     * Fetching the bare repository into the clone.
+     */
+    FETCH,
+    /**
+     * Executing the command itself.
+     */
+    EXECUTE,
+    /**
+     * Deleting the clone after the command.
+     */
+    DELETE_CLONE
+  }
+
+  GitMetricsListener NOOP = new GitMetricsListener() {
+    @Override
+    public void onTiming(Phase phase, Class<?> commandClass, File repositoryPath, long nanos) {
+    }
+
+    @Override
+    public void onQueueDepth(File repositoryPath, int depth) {
+    }
+
+    @Override
+    public void onActiveLocks(File repositoryPath, int count) {
+    }
+  };
+
+  /**
+   * A phase of a command is completed.
+   *
+   * @param phase
+   * @param commandClass
+   * @param repositoryPath
+   * @param nanos duration of the phase
+   */
+  void onTiming(Phase phase, Class<?> commandClass, File repositoryPath, long nanos);
+
+  /**
+   * Number of asynchronous commands queued or running on the repository changed.
+   *
+   * @param repositoryPath
+   * @param depth
+   */
+  void onQueueDepth(File repositoryPath, int depth);
+
+  /**
+   * Number of commands holding the repository lock changed.
+   *
+   * @param repositoryPath
+   * @param count
+   */
+  void onActiveLocks(File repositoryPath, int count);
+
+  /**
+   * A clone was about to be fetched from the repository.
+   *
+   * @param repositoryPath
+   * @param fetched false if the fetch was skipped because the repository refs did not change since the last fetch
+   */
+  default void onFetch(File repositoryPath, boolean fetched) {
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.api.errors.NoMessageException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.obiba.git.GitException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+
+/**
+ * Commit built without work tree: file contents are streamed into the object database, the new tree is built in
+ * memory from the HEAD tree and the HEAD branch is updated with a compare-and-set, failing if it was moved in the
+ * meantime.
+ * <p>
+ * Changes are applied in order: deleting a path drops the files previously added under it, adding a file after a
+ * deletion restores it.
+ */
+class InMemoryCommit implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(InMemoryCommit.class);
+
+  private final Repository repository;
+
+  private final ObjectInserter inserter;
+
+  private final Map<String, ObjectId> filesToAdd = new LinkedHashMap<>();
+
+  private final List<String> pathsToDelete = new ArrayList<>();
+
+  InMemoryCommit(Repository repository) {
+    this.repository = repository;
+    inserter = repository.newObjectInserter();
+  }
+
+  /**
+   * Write the file content in the object database.
+   *
+   * @param pathInRepo
+   * @param inputStream
+   * @throws IOException
+   */
+  void add(String pathInRepo, InputStream inputStream) throws IOException {
+    log.debug("Insert file {}", pathInRepo);
+    ObjectId blobId = insert(inserter, inputStream);
+    filesToAdd.remove(pathInRepo);
+    filesToAdd.put(pathInRepo, blobId);
+  }
+
+  /**
+   * Delete a file or a folder, same as 'git rm'.
+   *
+   * @param filePattern
+   */
+  void delete(String filePattern) {
+    filesToAdd.keySet().removeIf(path -> matches(path, filePattern));
+    pathsToDelete.add(filePattern);
+  }
+
+  /**
+   * Stage the changes of a command, or none of them if the command fails: the blobs it already inserted are then left
+   * unreferenced.
+   *
+   * @param command
+   * @throws IOException
+   */
+  void stage(InMemoryWriteCommand command) throws IOException {
+    Map<String, ObjectId> added = new LinkedHashMap<>(filesToAdd);
+    int deleted = pathsToDelete.size();
+    try {
+      command.stage(this);
+    } catch(IOException | RuntimeException e) {
+      filesToAdd.clear();
+      filesToAdd.putAll(added);
+      pathsToDelete.subList(deleted, pathsToDelete.size()).clear();
+      throw e;
+    }
+  }
+
+  /**
+   * Write the tree and the commit, then move the HEAD branch to this commit.
+   *
+   * @param authorName
+   * @param authorEmail
+   * @param message
+   * @return the new commit id
+   * @throws IOException
+   */
+  ObjectId commit(String authorName, String authorEmail, String message) throws IOException {
+    if(Strings.isNullOrEmpty(message)) {
+      throw new GitException(new NoMessageException("Commit message not specified"));
+    }
+    ObjectId head = repository.resolve(Constants.HEAD);
+    ObjectId treeId = buildTree(head).writeTree(inserter);
+
+    PersonIdent person = new PersonIdent(authorName, authorEmail);
+    CommitBuilder commit = new CommitBuilder();
+    commit.setTreeId(treeId);
+    if(head != null) commit.setParentId(head);
+    commit.setAuthor(person);
+    commit.setCommitter(person);
+    commit.setMessage(message);
+    ObjectId commitId = inserter.insert(commit);
+    inserter.flush();
+
+    RefUpdate refUpdate = repository.updateRef(Constants.HEAD);
+    refUpdate.setExpectedOldObjectId(head == null ? ObjectId.zeroId() : head);
+    refUpdate.setNewObjectId(commitId);
+    refUpdate.setRefLogIdent(person);
+    refUpdate.setRefLogMessage("commit: " + message.lines().findFirst().orElse(""), false);
+    RefUpdate.Result result = refUpdate.update();
+    if(result != RefUpdate.Result.NEW && result != RefUpdate.Result.FAST_FORWARD) {
+      throw new GitException("Cannot update %s to %s: %s".formatted(refUpdate.getName(), commitId.getName(), result));
+    }
+    log.debug("Commit {}: {} <{}> - {}", commitId.getName(), authorName, authorEmail, message);
+    return commitId;
+  }
+
+  private DirCache buildTree(ObjectId head) throws IOException {
+    DirCache dirCache = DirCache.newInCore();
+    DirCacheBuilder builder = dirCache.builder();
+    if(head != null) {
+      try(ObjectReader reader = repository.newObjectReader(); RevWalk walk = new RevWalk(reader);
+          TreeWalk treeWalk = new TreeWalk(reader)) {
+        treeWalk.addTree(walk.parseCommit(head).getTree());
+        treeWalk.setRecursive(true);
+        while(treeWalk.next()) {
+          String path = treeWalk.getPathString();
+          if(filesToAdd.containsKey(path) || isDeleted(path)) continue;
+          DirCacheEntry entry = new DirCacheEntry(path);
+          entry.setFileMode(treeWalk.getFileMode(0));
+          entry.setObjectId(treeWalk.getObjectId(0));
+          builder.add(entry);
+        }
+      }
+    }
+    for(Map.Entry<String, ObjectId> file : filesToAdd.entrySet()) {
+      DirCacheEntry entry = new DirCacheEntry(file.getKey());
+      entry.setFileMode(FileMode.REGULAR_FILE);
+      entry.setObjectId(file.getValue());
+      builder.add(entry);
+    }
+    builder.finish();
+    return dirCache;
+  }
+
+  private boolean isDeleted(String path) {
+    return pathsToDelete.stream().anyMatch(pattern -> matches(path, pattern));
+  }
+
+  private static boolean matches(String path, String pattern) {
+    return path.equals(pattern) || path.startsWith(pattern + "/");
+  }
+
+  /**
+   * Stream the content in the object database, hashing it while it is inserted. The blob header needs the content
+   * length: a stream which length is not known (upload...) is first copied to a temporary file.
+   *
+   * @param inserter
+   * @param inputStream
+   * @return the blob id
+   * @throws IOException
+   */
+  static ObjectId insert(ObjectInserter inserter, InputStream inputStream) throws IOException {
+    long length = getLength(inputStream);
+    if(length >= 0) return inserter.insert(Constants.OBJ_BLOB, length, inputStream);
+
+    Path spool = Files.createTempFile("git-insert-", ".tmp");
+    try {
+      long size = Files.copy(inputStream, spool, StandardCopyOption.REPLACE_EXISTING);
+      try(InputStream spooled = Files.newInputStream(spool)) {
+        return inserter.insert(Constants.OBJ_BLOB, size, spooled);
+      }
+    } finally {
+      Files.deleteIfExists(spool);
+    }
+  }
+
+  /**
+   * Number of bytes remaining in the stream when it can be known without reading it.
+   */
+  private static long getLength(InputStream inputStream) throws IOException {
+    if(inputStream instanceof FileInputStream fileInputStream) {
+      FileChannel channel = fileInputStream.getChannel();
+      return channel.size() - channel.position();
+    }
+    if(inputStream instanceof ByteArrayInputStream) {
+      return inputStream.available();
+    }
+    return -1;
+  }
+
+  @Override
+  public void close() {
+    inserter.close();
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the command timings per phase and command class, and the last value of the gauges per repository.
+ */
+public class InMemoryGitMetricsListener implements GitMetricsListener {
+
+  private final Map<TimerKey, Timer> timers = new ConcurrentHashMap<>();
+
+  private final Map<String, Integer> queueDepths = new ConcurrentHashMap<>();
+
+  private final Map<String, Integer> activeLocks = new ConcurrentHashMap<>();
+
+  private final Map<String, LongAdder> fetches = new ConcurrentHashMap<>();
+
+  private final Map<String, LongAdder> skippedFetches = new ConcurrentHashMap<>();
+
+  @Override
+  public void onTiming(Phase phase, Class<?> commandClass, File repositoryPath, long nanos) {
+    timers.computeIfAbsent(new TimerKey(phase, commandClass), key -> new Timer()).record(nanos);
+  }
+
+  @Override
+  public void onQueueDepth(File repositoryPath, int depth) {
+    queueDepths.put(repositoryPath.getAbsolutePath(), depth);
+  }
+
+  @Override
+  public void onActiveLocks(File repositoryPath, int count) {
+    activeLocks.put(repositoryPath.getAbsolutePath(), count);
+  }
+
+  @Override
+  public void onFetch(File repositoryPath, boolean fetched) {
+    (fetched ? fetches : skippedFetches).computeIfAbsent(repositoryPath.getAbsolutePath(), key -> new LongAdder())
+        .increment();
+  }
+
+  /**
+   * Timer of the phase for the commands of the given class.
+   *
+   * @param phase
+   * @param commandClass
+   * @return an empty timer if no such command was executed
+   */
+  public Timer getTimer(Phase phase, Class<?> commandClass) {
+    Timer timer = timers.get(new TimerKey(phase, commandClass));
+    return timer == null ? new Timer() : timer;
+  }
+
+  public int getQueueDepth(File repositoryPath) {
+    return queueDepths.getOrDefault(repositoryPath.getAbsolutePath(), 0);
+  }
+
+  public int getActiveLocks(File repositoryPath) {
+    return activeLocks.getOrDefault(repositoryPath.getAbsolutePath(), 0);
+  }
+
+  /**
+   * Number of clone fetches from the repository.
+   *
+   * @param repositoryPath
+   * @return
+   */
+  public long getFetchCount(File repositoryPath) {
+    LongAdder count = fetches.get(repositoryPath.getAbsolutePath());
+    return count == null ? 0 : count.sum();
+  }
+
+  /**
+   * Number of clone fetches skipped because the repository did not change.
+   *
+   * @param repositoryPath
+   * @return
+   */
+  public long getSkippedFetchCount(File repositoryPath) {
+    LongAdder count = skippedFetches.get(repositoryPath.getAbsolutePath());
+    return count == null ? 0 : count.sum();
+  }
+
+  public void reset() {
+    timers.clear();
+    queueDepths.clear();
+    activeLocks.clear();
+    fetches.clear();
+    skippedFetches.clear();
+  }
+
+  public static class Timer {
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    private void record(long nanos) {
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getTotalNanos() {
+      return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+      return maxNanos.get();
+    }
+  }
+
+  private static final class TimerKey {
+
+    private final Phase phase;
+
+    private final Class<?> commandClass;
+
+    private TimerKey(Phase phase, Class<?> commandClass) {
+      this.phase = phase;
+      this.commandClass = commandClass;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(this == o) return true;
+      if(!(o instanceof TimerKey other)) return false;
+      return phase == other.phase && commandClass.equals(other.commandClass);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(phase, commandClass);
+    }
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.IOException;
+
+/**
+ * Write command whose changes can be staged in an {@link InMemoryCommit}, possibly together with the changes of other
+ * commands.
+ */
+interface InMemoryWriteCommand extends GitWriteCommand {
+
+  /**
+   * Stage the changes of the command in an in-memory commit.
+   *
+   * @param commit
+   * @throws IOException
+   */
+  void stage(InMemoryCommit commit) throws IOException;
+}
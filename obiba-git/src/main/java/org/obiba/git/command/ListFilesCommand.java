@@ -65,6 +65,11 @@ public class ListFilesCommand extends AbstractGitCommand<Set<String>> {
     }
   }
 
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
   private Set<String> findFiles(TreeWalk commitWalk) throws IOException {
     ImmutableSet.Builder<String> files = ImmutableSet.builder();
     if(Strings.isNullOrEmpty(filter)) {
@@ -12,88 +12,229 @@ package org.obiba.git.command;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Date;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import jakarta.validation.constraints.NotNull;
 
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.LogCommand;
-import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.AndRevFilter;
+import org.eclipse.jgit.revwalk.filter.CommitTimeRevFilter;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.obiba.git.CommitInfo;
 import org.obiba.git.GitException;
 import org.obiba.git.GitUtils;
+import org.obiba.git.PathHistoryIndex;
 
 import com.google.common.base.Strings;
 import jakarta.annotation.Nullable;
 
+/**
+ * Opal GIT command used to extract the log of a repository or of a repository path, most recent commit first. Use
+ * {@link #stream(Git)} to walk the history lazily: the cost is then proportional to the number of commits consumed.
+ * The history of a file is read from the {@link PathHistoryIndex} when only paging criteria are specified.
+ */
 public class LogsCommand extends AbstractGitCommand<Iterable<CommitInfo>> {
 
   private String path;
 
   private boolean excludeDeletedCommits = false;
 
+  private int skip = 0;
+
+  private int maxCount = -1;
+
+  private Date since;
+
+  private Date until;
+
   private LogsCommand(@NotNull File repositoryPath, @Nullable File workPath) {
     super(repositoryPath, workPath);
   }
 
   @Override
   public Iterable<CommitInfo> execute(Git git) {
-    try {
-      LogCommand logCommand = git.log();
-      if(!Strings.isNullOrEmpty(path)) logCommand.addPath(path);
+    try(Stream<CommitInfo> commits = stream(git)) {
+      return commits.collect(Collectors.toList());
+    }
+  }
 
-      Collection<CommitInfo> commits = new ArrayList<>();
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
+  /**
+   * Walk the history lazily. The stream must be consumed while the repository is open and closed to release the
+   * underlying {@link RevWalk}.
+   *
+   * @param git
+   * @return
+   */
+  public Stream<CommitInfo> stream(Git git) {
+    Repository repository = git.getRepository();
+    RevWalk walk = new RevWalk(repository);
+    try {
       // for performance, get the id before looping thru all commits preventing resolving the id each time
-      String headCommitId = GitUtils.getHeadCommitId(git.getRepository());
-      // TODO find an efficient way of finding the current commit of a given path
-      // One possible solution is implementing: 'git log  --ancestry-path <COMMIT_HAEH>^..HEAD'
-      // For now, the list is in order of 'current .. oldest'
-      boolean isCurrent = true;
-
-      for(RevCommit commit : logCommand.call()) {
-        if(excludeDeletedCommits && hasDeletedCommit(git, commit)) continue;
-
-        String commitId = commit.getName();
-        boolean isHeadCommit = headCommitId.equals(commitId);
-        PersonIdent personIdent = commit.getAuthorIdent();
-        commits.add(new CommitInfo.Builder().authorName(personIdent.getName()) //
-            .authorEmail(personIdent.getEmailAddress()) //
-            .date(personIdent.getWhen()) //
-            .comment(commit.getFullMessage()) //
-            .commitId(commit.getName()) //
-            .current(isCurrent) //
-            .head(isHeadCommit).build());
-        isCurrent = false;
+      ObjectId head = GitUtils.getHeadCommit(repository);
+      if(head == null) {
+        // no commit yet
+        walk.close();
+        return Stream.empty();
+      }
+      String headCommitId = head.getName();
+      if(isIndexable()) {
+        PathHistoryIndex index = PathHistoryIndex.get(getRepositoryPath(), repository);
+        if(index.contains(path) && index.matches(head)) {
+          return streamFromIndex(index, walk, headCommitId);
+        }
+      }
+
+      walk.markStart(walk.parseCommit(head));
+      // parents rewriting requires the whole history to be walked before the first commit is produced
+      walk.setRewriteParents(false);
+      if(!Strings.isNullOrEmpty(path)) {
+        walk.setTreeFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(path), TreeFilter.ANY_DIFF));
       }
+      walk.setRevFilter(createRevFilter());
 
-      return commits;
+      Stream<RevCommit> commits = StreamSupport
+          .stream(Spliterators.spliteratorUnknownSize(walk.iterator(), Spliterator.ORDERED | Spliterator.NONNULL),
+              false);
+      if(skip > 0) commits = commits.skip(skip);
+      if(maxCount >= 0) commits = commits.limit(maxCount);
 
-    } catch(IOException | GitAPIException e) {
+      // the list is in order of 'current .. oldest'
+      AtomicBoolean isCurrent = new AtomicBoolean(skip == 0 && until == null);
+      return commits.map(commit -> toCommitInfo(commit, headCommitId, isCurrent.getAndSet(false))).onClose(walk::close);
+
+    } catch(IOException e) {
+      walk.close();
       throw new GitException(e);
     }
   }
 
   /**
-   * A file commit has only one diff entry. Having many diff entries imply that the commit path corresponds to the
-   * whole repository or a folder in the commit tree. In this case, we do not exclude the commit if there are modified
-   * or added changes as well.
-   *
-   * @param git
-   * @param commit
-   * @return
+   * The history of a file without any other criteria than paging can be read from the {@link PathHistoryIndex}.
+   */
+  private boolean isIndexable() {
+    return !Strings.isNullOrEmpty(path) && !excludeDeletedCommits && since == null && until == null;
+  }
+
+  private Stream<CommitInfo> streamFromIndex(PathHistoryIndex index, RevWalk walk, String headCommitId) {
+    Stream<ObjectId> commitIds = index.getCommits(path).stream();
+    if(skip > 0) commitIds = commitIds.skip(skip);
+    if(maxCount >= 0) commitIds = commitIds.limit(maxCount);
+    AtomicBoolean isCurrent = new AtomicBoolean(skip == 0);
+    return commitIds.map(commitId -> {
+      try {
+        return toCommitInfo(walk.parseCommit(commitId), headCommitId, isCurrent.getAndSet(false));
+      } catch(IOException e) {
+        throw new GitException(e);
+      }
+    }).onClose(walk::close);
+  }
+
+  private RevFilter createRevFilter() {
+    RevFilter filter = RevFilter.ALL;
+    if(since != null && until != null) filter = CommitTimeRevFilter.between(since, until);
+    else if(since != null) filter = CommitTimeRevFilter.after(since);
+    else if(until != null) filter = CommitTimeRevFilter.before(until);
+    return excludeDeletedCommits ? AndRevFilter.create(filter, new DeletedCommitsRevFilter(path)) : filter;
+  }
+
+  private CommitInfo toCommitInfo(RevCommit commit, String headCommitId, boolean isCurrent) {
+    String commitId = commit.getName();
+    PersonIdent personIdent = commit.getAuthorIdent();
+    return new CommitInfo.Builder().authorName(personIdent.getName()) //
+        .authorEmail(personIdent.getEmailAddress()) //
+        .date(personIdent.getWhen()) //
+        .comment(commit.getFullMessage()) //
+        .commitId(commitId) //
+        .current(isCurrent) //
+        .head(headCommitId.equals(commitId)).build();
+  }
+
+  /**
+   * Excludes the commits that only delete files. A file commit has only one diff entry. Having many diff entries imply
+   * that the commit path corresponds to the whole repository or a folder in the commit tree. In this case, we do not
+   * exclude the commit if there are modified or added changes as well.
+   * <p>
+   * The commit tree is compared to its first parent's tree in the walk, using the walk's object reader and the same
+   * tree parsers for all the commits. Renames are not detected: a renamed file is an addition.
    */
-  private boolean hasDeletedCommit(Git git, RevCommit commit) {
-    DiffCommand diffCommand = new DiffCommand.Builder(getRepositoryPath(), commit.getName()).path(path).build();
-    for(DiffEntry diff : diffCommand.execute(git)) {
-      if(DiffEntry.ChangeType.DELETE != diff.getChangeType()) {
-        return false;
+  private static class DeletedCommitsRevFilter extends RevFilter {
+
+    @Nullable
+    private final String path;
+
+    private final CanonicalTreeParser parentParser = new CanonicalTreeParser();
+
+    private final CanonicalTreeParser commitParser = new CanonicalTreeParser();
+
+    private TreeWalk treeWalk;
+
+    private DeletedCommitsRevFilter(@Nullable String path) {
+      this.path = path;
+    }
+
+    @Override
+    public boolean include(RevWalk walker, RevCommit commit) throws IOException {
+      ObjectReader reader = walker.getObjectReader();
+      if(treeWalk == null) {
+        treeWalk = new TreeWalk(reader);
+        treeWalk.setRecursive(true);
+        treeWalk.setFilter(Strings.isNullOrEmpty(path)
+            ? TreeFilter.ANY_DIFF
+            : AndTreeFilter.create(PathFilter.create(path), TreeFilter.ANY_DIFF));
+      }
+
+      treeWalk.reset();
+      if(commit.getParentCount() == 0) {
+        treeWalk.addTree(new EmptyTreeIterator());
+      } else {
+        RevCommit parent = commit.getParent(0);
+        walker.parseHeaders(parent);
+        parentParser.reset(reader, parent.getTree());
+        treeWalk.addTree(parentParser);
+      }
+      commitParser.reset(reader, commit.getTree());
+      treeWalk.addTree(commitParser);
+
+      while(treeWalk.next()) {
+        // path is present in the commit: added or modified
+        if(treeWalk.getRawMode(1) != 0) return true;
       }
+      return false;
+    }
+
+    @Override
+    public boolean requiresCommitBody() {
+      return false;
+    }
+
+    @Override
+    public RevFilter clone() {
+      return new DeletedCommitsRevFilter(path);
     }
-    return true;
   }
 
   @SuppressWarnings("ParameterHidesMemberVariable")
@@ -119,6 +260,38 @@ public class LogsCommand extends AbstractGitCommand<Iterable<CommitInfo>> {
       return this;
     }
 
+    /**
+     * Number of commits to skip, most recent first.
+     */
+    public Builder skip(int skip) {
+      command.skip = skip;
+      return this;
+    }
+
+    /**
+     * Maximum number of commits to return, negative for no limit.
+     */
+    public Builder maxCount(int maxCount) {
+      command.maxCount = maxCount;
+      return this;
+    }
+
+    /**
+     * Only commits committed at or after this date.
+     */
+    public Builder since(Date since) {
+      command.since = since;
+      return this;
+    }
+
+    /**
+     * Only commits committed at or before this date.
+     */
+    public Builder until(Date until) {
+      command.until = until;
+      return this;
+    }
+
     public LogsCommand build() {
       return command;
     }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.File;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.obiba.git.MaintenanceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.annotation.Nullable;
+
+/**
+ * Counts the writes per repository and collects the garbage of the repositories that were written many times, once they
+ * are quiet: no write for some time and, optionally, within a daily maintenance window.
+ *
+ * @see GitCommandHandler#setMaintenanceScheduler(MaintenanceScheduler)
+ */
+public class MaintenanceScheduler {
+
+  private static final Logger log = LoggerFactory.getLogger(MaintenanceScheduler.class);
+
+  public static final int DEFAULT_WRITE_THRESHOLD = 100;
+
+  public static final Duration DEFAULT_QUIET_PERIOD = Duration.ofMinutes(5);
+
+  public static final Duration DEFAULT_CHECK_INTERVAL = Duration.ofMinutes(1);
+
+  private final Map<String, RepositoryWrites> writes = new ConcurrentHashMap<>();
+
+  private final Map<String, MaintenanceInfo> lastMaintenances = new ConcurrentHashMap<>();
+
+  private int writeThreshold = DEFAULT_WRITE_THRESHOLD;
+
+  private Duration quietPeriod = DEFAULT_QUIET_PERIOD;
+
+  private Duration checkInterval = DEFAULT_CHECK_INTERVAL;
+
+  @Nullable
+  private LocalTime windowStart;
+
+  @Nullable
+  private LocalTime windowEnd;
+
+  private Clock clock = Clock.systemDefaultZone();
+
+  @Nullable
+  private volatile GitCommandHandler handler;
+
+  @Nullable
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Number of writes after which a repository is maintained.
+   *
+   * @param writeThreshold
+   */
+  public void setWriteThreshold(int writeThreshold) {
+    this.writeThreshold = writeThreshold;
+  }
+
+  /**
+   * Time without write before a repository is maintained.
+   *
+   * @param quietPeriod
+   */
+  public void setQuietPeriod(Duration quietPeriod) {
+    this.quietPeriod = quietPeriod;
+  }
+
+  public void setCheckInterval(Duration checkInterval) {
+    this.checkInterval = checkInterval;
+  }
+
+  /**
+   * Daily time window of the maintenance, may span midnight. Null bounds mean any time of the day.
+   *
+   * @param windowStart
+   * @param windowEnd
+   * @throws IllegalArgumentException if the bounds are equal, which could mean an empty window as well as the whole day
+   */
+  public void setMaintenanceWindow(@Nullable LocalTime windowStart, @Nullable LocalTime windowEnd) {
+    if(windowStart != null && windowStart.equals(windowEnd)) {
+      throw new IllegalArgumentException("Maintenance window bounds must differ: " + windowStart);
+    }
+    this.windowStart = windowStart;
+    this.windowEnd = windowEnd;
+  }
+
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  synchronized void start(GitCommandHandler handler) {
+    this.handler = handler;
+    if(scheduler != null) return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("git-maintenance-%d").build());
+    long interval = checkInterval.toMillis();
+    scheduler.scheduleWithFixedDelay(this::maintainQuietRepositories, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  synchronized void stop() {
+    if(scheduler != null) scheduler.shutdownNow();
+    scheduler = null;
+  }
+
+  void recordWrite(File repositoryPath) {
+    RepositoryWrites repositoryWrites = writes.computeIfAbsent(repositoryPath.getAbsolutePath(),
+        key -> new RepositoryWrites(repositoryPath));
+    repositoryWrites.lastWrite = clock.millis();
+    repositoryWrites.count.incrementAndGet();
+  }
+
+  /**
+   * Number of writes since the last maintenance of the repository.
+   *
+   * @param repositoryPath
+   * @return
+   */
+  public int getWriteCount(File repositoryPath) {
+    RepositoryWrites repositoryWrites = writes.get(repositoryPath.getAbsolutePath());
+    return repositoryWrites == null ? 0 : repositoryWrites.count.get();
+  }
+
+  /**
+   * Result of the last maintenance of the repository.
+   *
+   * @param repositoryPath
+   * @return null if the repository was not maintained since startup
+   */
+  @Nullable
+  public MaintenanceInfo getLastMaintenance(File repositoryPath) {
+    return lastMaintenances.get(repositoryPath.getAbsolutePath());
+  }
+
+  /**
+   * Maintain the repositories that reached the write threshold and are quiet.
+   */
+  void maintainQuietRepositories() {
+    if(!isInWindow(LocalTime.now(clock))) return;
+    long now = clock.millis();
+    for(RepositoryWrites repositoryWrites : writes.values()) {
+      if(repositoryWrites.count.get() >= writeThreshold && now - repositoryWrites.lastWrite >= quietPeriod.toMillis()) {
+        try {
+          maintain(repositoryWrites.repositoryPath);
+        } catch(RuntimeException e) {
+          log.warn("Maintenance of {} failed: {}", repositoryWrites.repositoryPath, e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Collect the garbage of the repository now.
+   *
+   * @param repositoryPath
+   * @return
+   * @throws IllegalStateException if the scheduler was not set on a {@link GitCommandHandler}
+   */
+  public MaintenanceInfo maintain(File repositoryPath) {
+    GitCommandHandler handler = this.handler;
+    if(handler == null) {
+      throw new IllegalStateException(
+          "Maintenance scheduler is not started, see GitCommandHandler#setMaintenanceScheduler");
+    }
+    RepositoryWrites repositoryWrites = writes.get(repositoryPath.getAbsolutePath());
+    // writes are blocked during the maintenance, the ones counted so far are covered
+    int count = repositoryWrites == null ? 0 : repositoryWrites.count.get();
+    MaintenanceInfo info = handler.execute(new GarbageCollectionCommand.Builder(repositoryPath).build());
+    if(repositoryWrites != null) repositoryWrites.count.addAndGet(-count);
+    lastMaintenances.put(repositoryPath.getAbsolutePath(), info);
+    log.info("Maintenance of {} in {} ms: {} pack files and {} loose objects, was {} pack files and {} loose objects",
+        repositoryPath, info.getDurationMillis(), info.getAfter().getPackFiles(), info.getAfter().getLooseObjects(),
+        info.getBefore().getPackFiles(), info.getBefore().getLooseObjects());
+    return info;
+  }
+
+  private boolean isInWindow(LocalTime time) {
+    if(windowStart == null || windowEnd == null) return true;
+    return windowStart.isBefore(windowEnd)
+        ? !time.isBefore(windowStart) && time.isBefore(windowEnd)
+        : !time.isBefore(windowStart) || time.isBefore(windowEnd);
+  }
+
+  private static class RepositoryWrites {
+
+    private final File repositoryPath;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private volatile long lastWrite;
+
+    private RepositoryWrites(File repositoryPath) {
+      this.repositoryPath = repositoryPath;
+    }
+  }
+}
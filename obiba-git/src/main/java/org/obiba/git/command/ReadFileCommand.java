@@ -10,17 +10,21 @@
 
 package org.obiba.git.command;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import jakarta.validation.constraints.NotNull;
 
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevTree;
@@ -32,7 +36,15 @@ import jakarta.annotation.Nullable;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
 
-public class ReadFileCommand extends AbstractGitCommand<InputStream> {
+/**
+ * Opal GIT command used to read the content of a file. The returned {@link ObjectStream} gives the size of the file
+ * up front. Blobs above JGit's stream file threshold (see
+ * {@link org.eclipse.jgit.storage.file.WindowCacheConfig#setStreamFileThreshold(int)}) are never fully loaded in
+ * memory: they are copied to a temporary file while the repository is locked, and the stream must be closed to delete
+ * it.
+ */
+public class ReadFileCommand extends AbstractGitCommand<ObjectStream>
+    implements CacheableBlobCommand<ObjectStream> {
 
   private final String path;
 
@@ -46,7 +58,7 @@ public class ReadFileCommand extends AbstractGitCommand<InputStream> {
   }
 
   @Override
-  public InputStream execute(Git git) {
+  public ObjectStream execute(Git git) {
     try {
       Repository repository = git.getRepository();
       if(!isNullOrEmpty(tag)) {
@@ -56,13 +68,37 @@ public class ReadFileCommand extends AbstractGitCommand<InputStream> {
         return readCommit(repository);
       }
       // read current revision
-      return new FileInputStream(new File(repository.getWorkTree(), path));
+      File file = new File(repository.getWorkTree(), path);
+      return new ObjectStream.Filter(Constants.OBJ_BLOB, file.length(), new FileInputStream(file));
     } catch(IOException e) {
       throw new GitException(e);
     }
   }
 
-  private InputStream readTag(Repository repository) throws IOException {
+  @Override
+  public boolean requiresWorkTree() {
+    // current revision is read from the work tree
+    return isNullOrEmpty(tag) && isNullOrEmpty(commitId);
+  }
+
+  @Override
+  @Nullable
+  public String getCommitId() {
+    // a tag may be moved
+    return isNullOrEmpty(tag) ? commitId : null;
+  }
+
+  @Override
+  public String getPath() {
+    return path;
+  }
+
+  @Override
+  public ObjectStream fromBlob(byte[] content) {
+    return new ObjectStream.SmallStream(Constants.OBJ_BLOB, content);
+  }
+
+  private ObjectStream readTag(Repository repository) throws IOException {
     Ref ref = repository.getTags().get(tag);
     ObjectId objectId = repository.resolve(ref.getObjectId().getName());
     if(objectId == null) {
@@ -71,7 +107,7 @@ public class ReadFileCommand extends AbstractGitCommand<InputStream> {
     return read(repository, objectId);
   }
 
-  private InputStream readCommit(Repository repository) throws IOException {
+  private ObjectStream readCommit(Repository repository) throws IOException {
     ObjectId objectId = repository.resolve(commitId);
     if(objectId == null) {
       throw new GitException("No commit with id '%s'".formatted(commitId));
@@ -79,14 +115,92 @@ public class ReadFileCommand extends AbstractGitCommand<InputStream> {
     return read(repository, objectId);
   }
 
-  private InputStream read(Repository repository, @NotNull ObjectId objectId) throws IOException {
-    ObjectReader reader = repository.newObjectReader();
-    RevTree tree = new RevWalk(reader).parseCommit(objectId).getTree();
-    TreeWalk treeWalk = TreeWalk.forPath(reader, path, tree);
-    if(treeWalk == null) {
-      throw new GitException("Path '%s' was not found in commit '%s'".formatted(path, objectId));
+  private ObjectStream read(Repository repository, @NotNull ObjectId objectId) throws IOException {
+    try(ObjectReader reader = repository.newObjectReader(); RevWalk walk = new RevWalk(reader)) {
+      RevTree tree = walk.parseCommit(objectId).getTree();
+      TreeWalk treeWalk = TreeWalk.forPath(reader, path, tree);
+      if(treeWalk == null) {
+        throw new GitException("Path '%s' was not found in commit '%s'".formatted(path, objectId));
+      }
+      return openBlob(repository, treeWalk.getObjectId(0));
+    }
+  }
+
+  /**
+   * Open a blob with its own object reader. Small blobs are served from the bytes already loaded by JGit, large blobs are
+   * copied to a temporary file, deleted when the stream is closed. The blob is fully read before returning, while the
+   * caller still holds the repository lock, so that the stream does not depend on the repository or its pack files
+   * (which can be closed, repacked or deleted as soon as the lock is released).
+   *
+   * @param repository
+   * @param blobId
+   * @return
+   * @throws IOException
+   */
+  static ObjectStream openBlob(Repository repository, ObjectId blobId) throws IOException {
+    try(ObjectReader reader = repository.newObjectReader()) {
+      return openBlob(reader.open(blobId, Constants.OBJ_BLOB));
+    }
+  }
+
+  /**
+   * Same as {@link #openBlob(Repository, ObjectId)} with a blob already opened by the caller's object reader.
+   *
+   * @param loader
+   * @return
+   * @throws IOException
+   */
+  static ObjectStream openBlob(ObjectLoader loader) throws IOException {
+    if(!loader.isLarge()) {
+      return new ObjectStream.SmallStream(loader);
+    }
+    File file = spool(loader);
+    try {
+      return new TempFileStream(file);
+    } catch(IOException e) {
+      Files.deleteIfExists(file.toPath());
+      throw e;
+    }
+  }
+
+  /**
+   * Copy a large blob to a temporary file.
+   *
+   * @param loader
+   * @return the temporary file, to be deleted by the caller
+   * @throws IOException
+   */
+  static File spool(ObjectLoader loader) throws IOException {
+    Path file = Files.createTempFile("git-blob-", ".tmp");
+    try(OutputStream out = Files.newOutputStream(file)) {
+      loader.copyTo(out);
+    } catch(IOException | RuntimeException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+    return file.toFile();
+  }
+
+  /**
+   * Large blob stream read from a temporary file, deleted once the stream is closed.
+   */
+  private static class TempFileStream extends ObjectStream.Filter {
+
+    private final File file;
+
+    private TempFileStream(File file) throws IOException {
+      super(Constants.OBJ_BLOB, file.length(), new FileInputStream(file));
+      this.file = file;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        Files.deleteIfExists(file.toPath());
+      }
     }
-    return new ByteArrayInputStream(reader.open(treeWalk.getObjectId(0)).getBytes());
   }
 
   @SuppressWarnings("ParameterHidesMemberVariable")
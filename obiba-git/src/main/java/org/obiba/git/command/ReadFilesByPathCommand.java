@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import jakarta.validation.constraints.NotNull;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.obiba.git.GitException;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ForwardingMap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+import jakarta.annotation.Nullable;
+
+/**
+ * Opal GIT command used to read many files of a commit in a single tree walk. The result maps each matching file path,
+ * in tree order, to a {@link ByteSource} of the file content. The contents are resolved while the repository is locked
+ * so that the sources stay valid after the command: small files are held in memory, large files (see
+ * {@link ReadFileCommand}) are copied to temporary files. The result must be closed to delete these files.
+ */
+public class ReadFilesByPathCommand extends AbstractGitCommand<ReadFilesByPathCommand.FileContents> {
+
+  private String commitId;
+
+  private String filter;
+
+  private boolean recursive = false;
+
+  private ReadFilesByPathCommand(File repositoryPath, @Nullable File workPath) {
+    super(repositoryPath, workPath);
+  }
+
+  @Override
+  public FileContents execute(Git git) {
+    ImmutableMap.Builder<String, ByteSource> files = ImmutableMap.builder();
+    List<File> spools = new ArrayList<>();
+    try {
+      walk(git, (filePath, loader) -> {
+        if(loader.isLarge()) {
+          File spool = ReadFileCommand.spool(loader);
+          spools.add(spool);
+          files.put(filePath, Files.asByteSource(spool));
+        } else {
+          files.put(filePath, ByteSource.wrap(loader.getCachedBytes()));
+        }
+      });
+    } catch(RuntimeException e) {
+      delete(spools);
+      throw e;
+    }
+    return new FileContents(files.build(), spools);
+  }
+
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
+  /**
+   * Visit the matching blobs of the commit, in tree order, with a single object reader.
+   *
+   * @param git
+   * @param visitor
+   */
+  void walk(Git git, BlobVisitor visitor) {
+    Repository repository = git.getRepository();
+    try(ObjectReader reader = repository.newObjectReader(); RevWalk walk = new RevWalk(reader)) {
+      ObjectId commit = repository.resolve(Strings.isNullOrEmpty(commitId) ? Constants.HEAD : commitId);
+      if(commit == null) {
+        if(Strings.isNullOrEmpty(commitId)) return; // no commit yet
+        throw new GitException("No commit with id '%s'".formatted(commitId));
+      }
+
+      TreeWalk treeWalk = new TreeWalk(reader);
+      treeWalk.addTree(walk.parseCommit(commit).getTree());
+      treeWalk.setRecursive(recursive);
+
+      Pattern pattern = Strings.isNullOrEmpty(filter) ? null : Pattern.compile(filter);
+      while(treeWalk.next()) {
+        if(treeWalk.getFileMode(0).getObjectType() != Constants.OBJ_BLOB) continue;
+        String filePath = treeWalk.getPathString();
+        if(pattern == null || pattern.matcher(filePath).find()) {
+          visitor.visit(filePath, reader.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB));
+        }
+      }
+    } catch(IOException e) {
+      throw new GitException(e);
+    }
+  }
+
+  /**
+   * Receives the blobs matched by {@link #walk(Git, BlobVisitor)}.
+   */
+  @FunctionalInterface
+  interface BlobVisitor {
+    void visit(String path, ObjectLoader loader) throws IOException;
+  }
+
+  private static void delete(List<File> files) {
+    for(File file : files) {
+      if(!file.delete() && file.exists()) file.deleteOnExit();
+    }
+  }
+
+  /**
+   * File contents by path, in tree order. Closing them deletes the temporary files of the large contents, which cannot
+   * be read anymore.
+   */
+  public static class FileContents extends ForwardingMap<String, ByteSource> implements Closeable {
+
+    private final Map<String, ByteSource> contents;
+
+    private final List<File> spools;
+
+    private FileContents(Map<String, ByteSource> contents, List<File> spools) {
+      this.contents = contents;
+      this.spools = spools;
+    }
+
+    @Override
+    protected Map<String, ByteSource> delegate() {
+      return contents;
+    }
+
+    @Override
+    public void close() {
+      delete(spools);
+      spools.clear();
+    }
+  }
+
+  @SuppressWarnings("ParameterHidesMemberVariable")
+  public static class Builder {
+
+    private final ReadFilesByPathCommand command;
+
+    public Builder(@NotNull File repositoryPath) {
+      this(repositoryPath, null);
+    }
+
+    public Builder(@NotNull File repositoryPath, @Nullable File workPath) {
+      command = new ReadFilesByPathCommand(repositoryPath, workPath);
+    }
+
+    public Builder commitId(String commitId) {
+      command.commitId = commitId;
+      return this;
+    }
+
+    public Builder filter(String filter) {
+      command.filter = filter;
+      return this;
+    }
+
+    public Builder recursive(boolean recursive) {
+      command.recursive = recursive;
+      return this;
+    }
+
+    public ReadFilesByPathCommand build() {
+      return command;
+    }
+  }
+
+}
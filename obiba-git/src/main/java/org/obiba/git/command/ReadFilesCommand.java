@@ -33,20 +33,25 @@ public class ReadFilesCommand extends AbstractGitCommand<Set<InputStream>> {
     super(repositoryPath, workPath);
   }
 
+  /**
+   * The file contents are resolved in a single tree walk while the repository is locked, each stream must be closed
+   * (large files are read from temporary files deleted on close).
+   */
   @Override
   public Set<InputStream> execute(Git git) {
-    ListFilesCommand listFilesCommand = new ListFilesCommand.Builder(getRepositoryPath()).recursive(recursive)
-        .filter(filter).commitId(commitId).build();
+    ReadFilesByPathCommand readFilesCommand = new ReadFilesByPathCommand.Builder(getRepositoryPath())
+        .recursive(recursive).filter(filter).commitId(commitId).build();
 
-    Set<String> files = listFilesCommand.execute(git);
     ImmutableSet.Builder<InputStream> fileContents = ImmutableSet.builder();
-    for(String file : files) {
-      fileContents.add(new ReadFileCommand.Builder(getRepositoryPath(), file).build().execute(git));
-    }
-
+    readFilesCommand.walk(git, (path, loader) -> fileContents.add(ReadFileCommand.openBlob(loader)));
     return fileContents.build();
   }
 
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
   @SuppressWarnings("ParameterHidesMemberVariable")
   public static class Builder {
 
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded LRU pool of open {@link Repository} handles, keyed by git directory path. Keeping the repositories open
+ * preserves JGit's pack indexes, window cache and ref caches between commands.
+ * <p>
+ * Each {@link #acquire(File)} must be balanced by a {@link #release(Repository)}. A repository is only closed when it
+ * is not in use: when it is evicted (least recently used first, or idle for too long) or after it was invalidated.
+ */
+public class RepositoryPool {
+
+  private static final Logger log = LoggerFactory.getLogger(RepositoryPool.class);
+
+  public static final int DEFAULT_MAX_SIZE = 64;
+
+  public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+  private final int maxSize;
+
+  private final long idleTimeout;
+
+  /**
+   * Pooled repositories in access order, least recently used first.
+   */
+  private final LinkedHashMap<String, PooledRepository> repositories = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * All the repositories handed out and not closed yet, including the invalidated ones.
+   */
+  private final Map<Repository, PooledRepository> leases = new IdentityHashMap<>();
+
+  private long hitCount;
+
+  private long missCount;
+
+  public RepositoryPool() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT);
+  }
+
+  /**
+   * @param maxSize maximum number of idle repositories kept open
+   * @param idleTimeout delay in milliseconds after which an unused repository is closed
+   */
+  public RepositoryPool(int maxSize, long idleTimeout) {
+    this.maxSize = maxSize;
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Get an open repository for the given git directory (the bare repository folder or the .git folder of a clone).
+   *
+   * @param gitDir
+   * @return
+   * @throws IOException
+   */
+  public synchronized Repository acquire(File gitDir) throws IOException {
+    evictIdle();
+    String key = gitDir.getAbsolutePath();
+    PooledRepository pooled = repositories.get(key);
+    if(pooled == null) {
+      log.trace("Open repository {}", key);
+      pooled = new PooledRepository(key, new FileRepository(gitDir));
+      repositories.put(key, pooled);
+      leases.put(pooled.repository, pooled);
+      missCount++;
+    } else {
+      hitCount++;
+    }
+    pooled.references++;
+    pooled.lastAccess = System.currentTimeMillis();
+    evictOverflow();
+    return pooled.repository;
+  }
+
+  /**
+   * Give back a repository obtained by {@link #acquire(File)}.
+   *
+   * @param repository
+   */
+  public synchronized void release(Repository repository) {
+    PooledRepository pooled = leases.get(repository);
+    if(pooled == null) {
+      throw new IllegalArgumentException("Repository is not part of the pool: " + repository.getDirectory());
+    }
+    pooled.references--;
+    pooled.lastAccess = System.currentTimeMillis();
+    if(pooled.invalid && pooled.references == 0) close(pooled);
+  }
+
+  /**
+   * Stop handing out the current repository handle for the given git directory, typically after it was modified by
+   * another handle. Repositories in use are closed once released.
+   *
+   * @param gitDir
+   */
+  public synchronized void invalidate(File gitDir) {
+    PooledRepository pooled = repositories.remove(gitDir.getAbsolutePath());
+    if(pooled == null) return;
+    log.trace("Invalidate repository {}", pooled.key);
+    pooled.invalid = true;
+    if(pooled.references == 0) close(pooled);
+  }
+
+  /**
+   * Close all the repositories that are not in use and stop pooling the others.
+   */
+  public synchronized void clear() {
+    for(PooledRepository pooled : new ArrayList<>(repositories.values())) {
+      invalidate(new File(pooled.key));
+    }
+  }
+
+  public synchronized int size() {
+    return repositories.size();
+  }
+
+  /**
+   * Number of acquisitions served by an already open repository.
+   *
+   * @return
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Number of acquisitions that opened the repository.
+   *
+   * @return
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  private void evictIdle() {
+    long expiry = System.currentTimeMillis() - idleTimeout;
+    evict(pooled -> pooled.lastAccess < expiry);
+  }
+
+  private void evictOverflow() {
+    int overflow = repositories.size() - maxSize;
+    if(overflow <= 0) return;
+    List<PooledRepository> unused = new ArrayList<>();
+    for(PooledRepository pooled : repositories.values()) {
+      if(unused.size() == overflow) break;
+      if(pooled.references == 0) unused.add(pooled);
+    }
+    evict(unused::contains);
+  }
+
+  private void evict(Predicate<PooledRepository> predicate) {
+    Iterator<PooledRepository> iterator = repositories.values().iterator();
+    while(iterator.hasNext()) {
+      PooledRepository pooled = iterator.next();
+      if(pooled.references == 0 && predicate.test(pooled)) {
+        iterator.remove();
+        close(pooled);
+      }
+    }
+  }
+
+  private void close(PooledRepository pooled) {
+    log.trace("Close repository {}", pooled.key);
+    leases.remove(pooled.repository);
+    pooled.repository.close();
+  }
+
+  private static class PooledRepository {
+
+    private final String key;
+
+    private final Repository repository;
+
+    private int references;
+
+    private long lastAccess;
+
+    private boolean invalid;
+
+    private PooledRepository(String key, Repository repository) {
+      this.key = key;
+      this.repository = repository;
+    }
+  }
+}
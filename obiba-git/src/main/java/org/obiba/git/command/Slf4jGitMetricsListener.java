@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs the command timings and the repository gauges at debug level.
+ */
+public class Slf4jGitMetricsListener implements GitMetricsListener {
+
+  private static final Logger log = LoggerFactory.getLogger(Slf4jGitMetricsListener.class);
+
+  @Override
+  public void onTiming(Phase phase, Class<?> commandClass, File repositoryPath, long nanos) {
+    if(log.isDebugEnabled()) {
+      log.debug("{} {} on {}: {} ms", commandClass.getSimpleName(), phase, repositoryPath.getAbsolutePath(),
+          TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+  }
+
+  @Override
+  public void onQueueDepth(File repositoryPath, int depth) {
+    log.debug("Queue depth of {}: {}", repositoryPath.getAbsolutePath(), depth);
+  }
+
+  @Override
+  public void onActiveLocks(File repositoryPath, int count) {
+    log.debug("Active locks on {}: {}", repositoryPath.getAbsolutePath(), count);
+  }
+
+  @Override
+  public void onFetch(File repositoryPath, boolean fetched) {
+    log.debug("Fetch of {}: {}", repositoryPath.getAbsolutePath(), fetched ? "done" : "skipped");
+  }
+}
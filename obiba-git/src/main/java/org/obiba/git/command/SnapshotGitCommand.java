@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import org.eclipse.jgit.api.Git;
+
+/**
+ * Command reading a snapshot of the repository: the objects to be read are resolved by {@link #execute(Git)} while the
+ * repository is locked, and read by {@link #complete(Object, Git)} once the lock is released, so that a slow consumer
+ * does not hold the lock. Objects are immutable and the garbage collection keeps the objects that were reachable for
+ * its prune expiry delay.
+ *
+ * @param <T>
+ */
+interface SnapshotGitCommand<T> extends GitCommand<T> {
+
+  /**
+   * Read the resolved objects, called by {@link GitCommandHandler} after a successful execution and outside the
+   * repository lock.
+   *
+   * @param result the result of the execution
+   * @param git the bare repository
+   * @return
+   */
+  T complete(T result, Git git);
+}
@@ -49,6 +49,11 @@ public class TagListCommand extends AbstractGitCommand<Iterable<TagInfo>> {
     }
   }
 
+  @Override
+  public boolean requiresWorkTree() {
+    return false;
+  }
+
   @SuppressWarnings("ParameterHidesMemberVariable")
   public static class Builder {
 
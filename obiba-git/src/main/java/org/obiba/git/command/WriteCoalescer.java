@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Queue of write commands per repository: the commands submitted within a time window, or until the batch is full, are
+ * committed at once in the bare repository. Batches of the same repository are committed in submission order.
+ * <p>
+ * A command that cannot be staged fails alone, see {@link CoalescedWriteCommand}; a failure of the commit itself fails
+ * the whole batch. The commands are staged later in an executor thread: the input streams they hold must not be
+ * closed by the callers before their future is completed.
+ */
+class WriteCoalescer {
+
+  private static final Logger log = LoggerFactory.getLogger(WriteCoalescer.class);
+
+  private final GitCommandHandler handler;
+
+  private final long windowMillis;
+
+  private final int maxWrites;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("git-write-coalescer-%d").build());
+
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  /**
+   * Batch being filled, per repository path.
+   */
+  private final Map<String, List<PendingWrite>> pendingWrites = new HashMap<>();
+
+  /**
+   * Last batch committed or waiting to be committed, per repository path.
+   */
+  private final Map<String, CompletableFuture<Void>> lastWrites = new HashMap<>();
+
+  private boolean shutdown;
+
+  WriteCoalescer(GitCommandHandler handler, long windowMillis, int maxWrites) {
+    this.handler = handler;
+    this.windowMillis = windowMillis;
+    this.maxWrites = maxWrites;
+  }
+
+  /**
+   * Queue the command in the batch of its repository.
+   *
+   * @param command
+   * @return the id of the commit including the changes of the command
+   * @throws RejectedExecutionException if the coalescer was shut down
+   */
+  CompletableFuture<String> submit(AbstractGitWriteCommand command) {
+    // the author is resolved in the caller thread, where its security context is
+    command.setAuthorName(command.getAuthorName());
+    command.setAuthorEmail(command.getAuthorEmail());
+
+    String key = command.getRepositoryPath().getAbsolutePath();
+    PendingWrite write = new PendingWrite(command);
+    synchronized(this) {
+      // the batch would never be committed
+      if(shutdown) throw new RejectedExecutionException("Write coalescer is shut down");
+      List<PendingWrite> batch = pendingWrites.computeIfAbsent(key, k -> new ArrayList<>());
+      batch.add(write);
+      if(batch.size() >= maxWrites) {
+        flush(key, batch);
+      } else if(batch.size() == 1) {
+        scheduler.schedule(() -> flush(key, batch), windowMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    return write.future;
+  }
+
+  /**
+   * Commit the pending writes and wait for all the batches to be committed. The writes submitted afterwards are
+   * rejected.
+   */
+  void shutdown() {
+    synchronized(this) {
+      shutdown = true;
+      new HashMap<>(pendingWrites).forEach(this::flush);
+    }
+    scheduler.shutdownNow();
+    executor.close();
+  }
+
+  private synchronized void flush(String key, List<PendingWrite> batch) {
+    // batch already flushed because it was full
+    if(pendingWrites.get(key) != batch) return;
+    pendingWrites.remove(key);
+
+    CompletableFuture<Void> previous = lastWrites.getOrDefault(key, CompletableFuture.completedFuture(null));
+    CompletableFuture<Void> last = previous.thenRunAsync(() -> write(batch), executor);
+    lastWrites.put(key, last);
+    last.whenComplete((result, e) -> removeLastWrite(key, last));
+  }
+
+  private synchronized void removeLastWrite(String key, CompletableFuture<Void> last) {
+    lastWrites.remove(key, last);
+  }
+
+  private void write(List<PendingWrite> batch) {
+    List<AbstractGitWriteCommand> commands = batch.stream().map(pendingWrite -> pendingWrite.command).toList();
+    try {
+      CoalescedWriteCommand command = new CoalescedWriteCommand(commands);
+      handler.executeLocked(command, true);
+      log.debug("Committed {} writes in {}: {}", batch.size(), command.getRepositoryPath(), command.getCommitId());
+      for(PendingWrite pendingWrite : batch) {
+        RuntimeException failure = command.getFailure(pendingWrite.command);
+        if(failure == null) {
+          pendingWrite.future.complete(command.getCommitId().getName());
+        } else {
+          pendingWrite.future.completeExceptionally(failure);
+        }
+      }
+    } catch(RuntimeException e) {
+      // the commit itself failed
+      batch.forEach(pendingWrite -> pendingWrite.future.completeExceptionally(e));
+    }
+  }
+
+  private static class PendingWrite {
+
+    private final AbstractGitWriteCommand command;
+
+    private final CompletableFuture<String> future = new CompletableFuture<>();
+
+    private PendingWrite(AbstractGitWriteCommand command) {
+      this.command = command;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.obiba.core.util.FileUtil;
+
+import com.google.common.io.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CloneManagerTest {
+
+  private static File testFolder;
+
+  @BeforeClass
+  public static void init() {
+    testFolder = Files.createTempDir();
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    try {
+      FileUtil.delete(testFolder);
+    } catch(IOException e) {
+    }
+  }
+
+  @Test
+  public void test_least_recently_used_clone_is_evicted() throws Exception {
+    CloneManager manager = new CloneManager(1500);
+    List<File> evicted = new ArrayList<>();
+    manager.setEvictionListener(evicted::add);
+    File clone1 = createClone(1000);
+    File clone2 = createClone(1000);
+
+    manager.acquire(clone1);
+    manager.release(clone1, true);
+    assertThat(manager.getDiskUsage()).isEqualTo(1000);
+
+    manager.acquire(clone2);
+    manager.release(clone2, true);
+    assertThat(evicted).containsExactly(clone1);
+    assertThat(clone1).doesNotExist();
+    assertThat(clone2).exists();
+    assertThat(manager.size()).isEqualTo(1);
+    assertThat(manager.getDiskUsage()).isEqualTo(1000);
+  }
+
+  @Test
+  public void test_clone_in_use_is_not_evicted() throws Exception {
+    CloneManager manager = new CloneManager(1500);
+    File clone1 = createClone(1000);
+    File clone2 = createClone(1000);
+
+    manager.acquire(clone1);
+    manager.release(clone1, true);
+    manager.acquire(clone1);
+    manager.acquire(clone2);
+    manager.release(clone2, true);
+
+    // the idle clone is evicted even if it is the most recently used
+    assertThat(clone1).exists();
+    assertThat(clone2).doesNotExist();
+    manager.release(clone1, false);
+    assertThat(clone1).exists();
+  }
+
+  private File createClone(int size) throws IOException {
+    File clone = java.nio.file.Files.createTempDirectory(testFolder.toPath(), "clone").toFile();
+    Files.write(new byte[size], new File(clone, "file.bin"));
+    return clone;
+  }
+}
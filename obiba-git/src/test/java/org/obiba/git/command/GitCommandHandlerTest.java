@@ -0,0 +1,700 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.stream.IntStream;
+
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.mgt.DefaultSecurityManager;
+import org.eclipse.jgit.api.errors.NoMessageException;
+import org.eclipse.jgit.transport.PushResult;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.obiba.core.util.FileUtil;
+import org.obiba.git.CommitInfo;
+import org.obiba.git.GitException;
+import org.obiba.git.MaintenanceInfo;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class GitCommandHandlerTest {
+
+  private static final int REPOSITORIES = 24;
+
+  private static final int THREADS = 8;
+
+  private final GitCommandHandler handler = new GitCommandHandler();
+
+  private static File testFolder;
+
+  @BeforeClass
+  public static void init() {
+    SecurityUtils.setSecurityManager(new DefaultSecurityManager());
+    testFolder = Files.createTempDir();
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    try {
+      FileUtil.delete(testFolder);
+    } catch(IOException e) {
+    }
+  }
+
+  @Test
+  public void test_concurrent_commands_on_many_repositories() throws Exception {
+    List<File> repos = new ArrayList<>();
+    for(int i = 0; i < REPOSITORIES; i++) {
+      repos.add(getRepoPath());
+    }
+    // repository read by all the tasks while the others are written
+    writeFile(repos.get(0), "Repository 0");
+
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for(int i = 0; i < repos.size(); i++) {
+        results.add(executor.submit(writeThenRead(repos.get(i), "Repository " + i)));
+        results.add(executor.submit(() -> readFile(repos.get(0), "file.txt")));
+      }
+      for(Future<String> result : results) {
+        assertThat(result.get(1, TimeUnit.MINUTES)).startsWith("Repository ");
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for(int i = 0; i < repos.size(); i++) {
+      assertThat(readFile(repos.get(i), "file.txt")).isEqualTo("Repository " + i + " round 2");
+    }
+  }
+
+  @Test
+  public void test_write_lock_does_not_block_other_repositories() throws Exception {
+    File locked = getRepoPath();
+    File other = getRepoPath();
+    writeFile(locked, "Locked");
+    writeFile(other, "Other");
+
+    Lock writeLock = handler.getReadWriteLock(locked).writeLock();
+    writeLock.lock();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<String> read = executor.submit(() -> readFile(other, "file.txt"));
+      assertThat(read.get(30, TimeUnit.SECONDS)).isEqualTo("Other");
+    } finally {
+      writeLock.unlock();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void test_fetch_detects_changes_made_by_another_clone() throws Exception {
+    // tags are listed from the reader clone
+    handler.setBareReadEnabled(false);
+    InMemoryGitMetricsListener metrics = new InMemoryGitMetricsListener();
+    handler.setMetricsListener(metrics);
+    File repo = getRepoPath();
+    File writerWorkPath = new File(testFolder, "writer");
+    File readerWorkPath = new File(testFolder, "reader");
+    writeFile(repo, "Version 1");
+
+    handler.execute(new TagCommand.Builder(repo, writerWorkPath, "First tag", "1.0").build());
+    // fresh clone, up to date
+    assertThat(handler.execute(new TagListCommand.Builder(repo, readerWorkPath).build())).hasSize(1);
+    metrics.reset();
+    // unchanged repository, fetch is skipped
+    assertThat(handler.execute(new TagListCommand.Builder(repo, readerWorkPath).build())).hasSize(1);
+    assertThat(metrics.getSkippedFetchCount(repo)).isEqualTo(1);
+    assertThat(metrics.getFetchCount(repo)).isZero();
+
+    handler.execute(new TagCommand.Builder(repo, writerWorkPath, "Second tag", "2.0").build());
+    metrics.reset();
+    assertThat(handler.execute(new TagListCommand.Builder(repo, readerWorkPath).build())).hasSize(2);
+    assertThat(metrics.getFetchCount(repo)).isEqualTo(1);
+    assertThat(metrics.getSkippedFetchCount(repo)).isZero();
+  }
+
+  @Test
+  public void test_read_commands_do_not_clone() throws Exception {
+    File repo = getRepoPath();
+    File workPath = new File(testFolder, "bare-reads");
+    writeFile(repo, "Version 1");
+    String commitId = handler.execute(new LogsCommand.Builder(repo, workPath).build()).iterator().next().getCommitId();
+
+    assertThat(handler.execute(new ListFilesCommand.Builder(repo, workPath).build())).containsExactly("file.txt");
+    assertThat(handler.execute(new TagListCommand.Builder(repo, workPath).build())).isEmpty();
+    assertThat(handler.execute(new FetchBlobCommand.Builder(repo, workPath, "file.txt").commitId(commitId).build()))
+        .isEqualTo("Version 1");
+    assertThat(workPath.list()).isEmpty();
+  }
+
+  @Test
+  public void test_blob_cache() throws Exception {
+    File repo = getRepoPath();
+    writeFile(repo, "Version 1");
+    String commitId = handler.execute(new LogsCommand.Builder(repo).build()).iterator().next().getCommitId();
+
+    BlobCache cache = new BlobCache();
+    GitCommandHandler cachedHandler = new GitCommandHandler();
+    cachedHandler.setBlobCache(cache);
+    for(int i = 0; i < 3; i++) {
+      assertThat(cachedHandler.execute(new FetchBlobCommand.Builder(repo, "file.txt").commitId(commitId).build()))
+          .isEqualTo("Version 1");
+    }
+    ReadFileCommand readFileCommand = new ReadFileCommand.Builder(repo, "file.txt").commitId(commitId).build();
+    try(InputStream input = cachedHandler.execute(readFileCommand)) {
+      assertThat(CharStreams.toString(new InputStreamReader(input, Charsets.UTF_8))).isEqualTo("Version 1");
+    }
+
+    assertThat(cache.stats().missCount()).isEqualTo(1);
+    assertThat(cache.stats().hitCount()).isEqualTo(3);
+    assertThat(cache.weight()).isEqualTo("Version 1".length());
+  }
+
+  @Test
+  public void test_blob_cache_is_per_repository() throws Exception {
+    File repo = getRepoPath();
+    File other = getRepoPath();
+    writeFile(repo, "Private");
+    writeFile(other, "Other");
+    String commitId = handler.execute(new LogsCommand.Builder(repo).build()).iterator().next().getCommitId();
+
+    GitCommandHandler cachedHandler = new GitCommandHandler();
+    cachedHandler.setBlobCache(new BlobCache());
+    assertThat(cachedHandler.execute(new FetchBlobCommand.Builder(repo, "file.txt").commitId(commitId).build()))
+        .isEqualTo("Private");
+    try {
+      // the commit of a repository is not found in another one
+      cachedHandler.execute(new FetchBlobCommand.Builder(other, "file.txt").commitId(commitId).build());
+      fail("Expected GitException");
+    } catch(GitException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void test_blob_too_large_to_be_cached_is_read_within_one_lock() throws Exception {
+    File repo = getRepoPath();
+    writeFile(repo, "Too large");
+    String commitId = handler.execute(new LogsCommand.Builder(repo).build()).iterator().next().getCommitId();
+
+    BlobCache cache = new BlobCache(BlobCache.DEFAULT_MAXIMUM_WEIGHT, 4);
+    GitCommandHandler cachedHandler = new GitCommandHandler();
+    cachedHandler.setBlobCache(cache);
+    InMemoryGitMetricsListener metrics = new InMemoryGitMetricsListener();
+    cachedHandler.setMetricsListener(metrics);
+    assertThat(cachedHandler.execute(new FetchBlobCommand.Builder(repo, "file.txt").commitId(commitId).build()))
+        .isEqualTo("Too large");
+
+    assertThat(metrics.getTimer(GitMetricsListener.Phase.LOCK_WAIT, BlobCache.LoadCommand.class).getCount())
+        .isEqualTo(1);
+    assertThat(metrics.getTimer(GitMetricsListener.Phase.LOCK_WAIT, FetchBlobCommand.class).getCount()).isZero();
+    assertThat(cache.weight()).isZero();
+  }
+
+  @Test
+  public void test_bare_writes() throws Exception {
+    File repo = getRepoPath();
+    File workPath = new File(testFolder, "bare-writes");
+    GitCommandHandler bareHandler = new GitCommandHandler();
+    bareHandler.setBareWriteEnabled(true);
+
+    bareHandler.execute(new AddDeleteFilesCommand.Builder(repo, workPath, "Add") //
+        .addFile("a.txt", new ByteArrayInputStream("A".getBytes(Charsets.UTF_8))) //
+        .addFile("dir/b.txt", new ByteArrayInputStream("B".getBytes(Charsets.UTF_8))) //
+        .addFile("dir/c.txt", new ByteArrayInputStream("C".getBytes(Charsets.UTF_8))) //
+        .build());
+    assertThat(workPath.exists()).isFalse();
+    // the clone follows the commits made in the bare repository
+    assertThat(readFile(repo, "dir/b.txt")).isEqualTo("B");
+
+    bareHandler.execute(new AddDeleteFilesCommand.Builder(repo, workPath, "Replace") //
+        .addFile("dir/b.txt", new ByteArrayInputStream("B2".getBytes(Charsets.UTF_8))) //
+        .deleteFile("dir/c.txt") //
+        .build());
+    assertThat(readFile(repo, "dir/b.txt")).isEqualTo("B2");
+
+    bareHandler.execute(new DeleteFilesCommand.Builder(repo, workPath, "dir", "Delete").build());
+    assertThat(bareHandler.execute(new ListFilesCommand.Builder(repo, workPath).build())).containsExactly("a.txt");
+    assertThat(bareHandler.execute(new LogsCommand.Builder(repo, workPath).build())).hasSize(3);
+
+    // commits made through a clone keep working on top of the bare commits
+    writeFile(repo, "From clone");
+    assertThat(bareHandler.execute(new ListFilesCommand.Builder(repo, workPath).build()))
+        .containsExactly("a.txt", "file.txt");
+  }
+
+  @Test
+  public void test_bare_write_of_stream_with_unknown_length() throws Exception {
+    File repo = getRepoPath();
+    GitCommandHandler bareHandler = new GitCommandHandler();
+    bareHandler.setBareWriteEnabled(true);
+    // e.g. an upload: neither a file nor a byte array
+    InputStream upload = new BufferedInputStream(new ByteArrayInputStream("Uploaded".getBytes(Charsets.UTF_8)));
+    bareHandler.execute(new AddFilesCommand.Builder(repo, "Upload").addFile("upload.txt", upload).build());
+    assertThat(readFile(repo, "upload.txt")).isEqualTo("Uploaded");
+  }
+
+  @Test
+  public void test_concurrent_reads_of_a_clone_reset_after_bare_writes() throws Exception {
+    File repo = getRepoPath();
+    File workPath = new File(testFolder, "shared-clone");
+    GitCommandHandler bareHandler = new GitCommandHandler();
+    bareHandler.setBareWriteEnabled(true);
+    bareHandler.setBareReadEnabled(false);
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      for(int round = 0; round < 5; round++) {
+        String name = "file" + round + ".txt";
+        bareHandler.execute(new AddFilesCommand.Builder(repo, workPath, "Round " + round) //
+            .addFile(name, new ByteArrayInputStream(name.getBytes(Charsets.UTF_8))) //
+            .build());
+        // the readers share the clone, only one of them resets it
+        List<Future<Set<String>>> futures = new ArrayList<>();
+        for(int i = 0; i < THREADS; i++) {
+          futures.add(executor.submit(() -> bareHandler.execute(new ListFilesCommand.Builder(repo, workPath).build())));
+        }
+        for(Future<Set<String>> future : futures) {
+          assertThat(future.get(30, TimeUnit.SECONDS)).hasSize(round + 1).contains(name);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      bareHandler.destroy();
+    }
+  }
+
+  @Test
+  public void test_bare_write_requires_message() throws Exception {
+    File repo = getRepoPath();
+    GitCommandHandler bareHandler = new GitCommandHandler();
+    bareHandler.setBareWriteEnabled(true);
+    try {
+      bareHandler.execute(new AddFilesCommand.Builder(repo, "") //
+          .addFile("a.txt", new ByteArrayInputStream("A".getBytes(Charsets.UTF_8))) //
+          .build());
+      fail("Expected GitException");
+    } catch(GitException e) {
+      assertThat(e).hasRootCauseInstanceOf(NoMessageException.class);
+    }
+    assertThat(bareHandler.execute(new LogsCommand.Builder(repo).build())).isEmpty();
+  }
+
+  @Test
+  public void test_coalesced_writes() throws Exception {
+    File repo = getRepoPath();
+    GitCommandHandler coalescingHandler = new GitCommandHandler();
+    coalescingHandler.setWriteCoalescing(Duration.ofMillis(500), 10);
+    try {
+      List<CompletableFuture<String>> commitIds = new ArrayList<>();
+      for(String author : new String[] { "alice", "bob", "alice" }) {
+        GitWriteCommand command = new AddFilesCommand.Builder(repo, "Update by " + author) //
+            .addFile(author + ".txt", new ByteArrayInputStream(author.getBytes(Charsets.UTF_8))) //
+            .build();
+        command.setAuthorName(author);
+        command.setAuthorEmail(author + "@obiba.org");
+        commitIds.add(coalescingHandler.executeCoalesced(command));
+      }
+      String commitId = commitIds.get(0).get(10, TimeUnit.SECONDS);
+      for(CompletableFuture<String> other : commitIds) {
+        assertThat(other.get(10, TimeUnit.SECONDS)).isEqualTo(commitId);
+      }
+
+      List<CommitInfo> commits = Lists.newArrayList(coalescingHandler.execute(new LogsCommand.Builder(repo).build()));
+      assertThat(commits).hasSize(1);
+      assertThat(commits.get(0).getCommitId()).isEqualTo(commitId);
+      assertThat(commits.get(0).getAuthorName()).isEqualTo("alice");
+      assertThat(commits.get(0).getComment()).isEqualTo(
+          "Update by alice\n\nUpdate by bob\n\nUpdate by alice\n\nCo-authored-by: bob <bob@obiba.org>");
+      assertThat(coalescingHandler.execute(new ListFilesCommand.Builder(repo).build()))
+          .containsExactly("alice.txt", "bob.txt");
+    } finally {
+      coalescingHandler.destroy();
+    }
+  }
+
+  @Test
+  public void test_coalesced_writes_are_bounded() throws Exception {
+    File repo = getRepoPath();
+    GitCommandHandler coalescingHandler = new GitCommandHandler();
+    coalescingHandler.setWriteCoalescing(Duration.ofMinutes(1), 2);
+    try {
+      List<CompletableFuture<String>> commitIds = new ArrayList<>();
+      for(int i = 0; i < 4; i++) {
+        commitIds.add(coalescingHandler.executeCoalesced(new AddFilesCommand.Builder(repo, "Update " + i) //
+            .addFile("file" + i + ".txt", new ByteArrayInputStream(("File " + i).getBytes(Charsets.UTF_8))) //
+            .build()));
+      }
+      // full batches do not wait for the end of the window
+      CompletableFuture.allOf(commitIds.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+      assertThat(commitIds.get(1).get()).isEqualTo(commitIds.get(0).get());
+      assertThat(commitIds.get(3).get()).isEqualTo(commitIds.get(2).get()).isNotEqualTo(commitIds.get(0).get());
+      assertThat(coalescingHandler.execute(new LogsCommand.Builder(repo).build())).hasSize(2);
+    } finally {
+      coalescingHandler.destroy();
+    }
+  }
+
+  @Test
+  public void test_coalesced_write_failure_is_isolated() throws Exception {
+    File repo = getRepoPath();
+    GitCommandHandler coalescingHandler = new GitCommandHandler();
+    coalescingHandler.setWriteCoalescing(Duration.ofMinutes(1), 3);
+    try {
+      List<CompletableFuture<String>> commitIds = new ArrayList<>();
+      for(String message : new String[] { "First", "", "Third" }) {
+        commitIds.add(coalescingHandler.executeCoalesced(new AddFilesCommand.Builder(repo, message) //
+            .addFile(message + ".txt", new ByteArrayInputStream(message.getBytes(Charsets.UTF_8))) //
+            .build()));
+      }
+      String commitId = commitIds.get(0).get(10, TimeUnit.SECONDS);
+      assertThat(commitIds.get(2).get(10, TimeUnit.SECONDS)).isEqualTo(commitId);
+      try {
+        commitIds.get(1).get(10, TimeUnit.SECONDS);
+        fail("Expected the write without message to fail");
+      } catch(ExecutionException e) {
+        assertThat(e.getCause()).hasRootCauseExactlyInstanceOf(NoMessageException.class);
+      }
+
+      List<CommitInfo> commits = Lists.newArrayList(coalescingHandler.execute(new LogsCommand.Builder(repo).build()));
+      assertThat(commits).hasSize(1);
+      assertThat(commits.get(0).getComment()).isEqualTo("First\n\nThird");
+      assertThat(coalescingHandler.execute(new ListFilesCommand.Builder(repo).build()))
+          .containsExactly("First.txt", "Third.txt");
+    } finally {
+      coalescingHandler.destroy();
+    }
+  }
+
+  @Test
+  public void test_coalesced_writes_are_rejected_after_destroy() throws Exception {
+    File repo = getRepoPath();
+    GitCommandHandler coalescingHandler = new GitCommandHandler();
+    coalescingHandler.setWriteCoalescing(Duration.ofMinutes(1), 10);
+    CompletableFuture<String> commitId = coalescingHandler.executeCoalesced(
+        new AddFilesCommand.Builder(repo, "Pending") //
+        .addFile("file.txt", new ByteArrayInputStream("Pending".getBytes(Charsets.UTF_8))) //
+        .build());
+    coalescingHandler.destroy();
+    // the pending write is committed on destroy
+    assertThat(commitId.get(10, TimeUnit.SECONDS)).isNotEmpty();
+
+    try {
+      coalescingHandler.executeCoalesced(new AddFilesCommand.Builder(repo, "Rejected") //
+          .addFile("file.txt", new ByteArrayInputStream("Rejected".getBytes(Charsets.UTF_8))) //
+          .build());
+      fail("Expected RejectedExecutionException");
+    } catch(RejectedExecutionException e) {
+      // expected
+    }
+    assertThat(readFile(repo, "file.txt")).isEqualTo("Pending");
+  }
+
+  @Test
+  public void test_async_commands_are_rejected_when_repository_is_saturated() throws Exception {
+    File repo = getRepoPath();
+    writeFile(repo, "Saturated");
+    GitCommandHandler asyncHandler = new GitCommandHandler();
+    asyncHandler.setMaxQueueDepth(2);
+
+    ReadWriteLock readWriteLock = asyncHandler.getReadWriteLock(repo);
+    readWriteLock.writeLock().lock();
+    List<CompletableFuture<Set<String>>> files = new ArrayList<>();
+    try {
+      files.add(asyncHandler.executeAsync(new ListFilesCommand.Builder(repo).build()));
+      files.add(asyncHandler.executeAsync(new ListFilesCommand.Builder(repo).build()));
+      assertThat(asyncHandler.getQueueDepth(repo)).isEqualTo(2);
+      try {
+        asyncHandler.executeAsync(new ListFilesCommand.Builder(repo).build());
+        fail("Expected RejectedExecutionException");
+      } catch(RejectedExecutionException e) {
+        // expected
+      }
+      // other repositories are not affected
+      File other = getRepoPath();
+      writeFile(other, "Other");
+      assertThat(asyncHandler.executeAsync(new ListFilesCommand.Builder(other).build()).get(30, TimeUnit.SECONDS))
+          .containsExactly("file.txt");
+    } finally {
+      readWriteLock.writeLock().unlock();
+    }
+    for(CompletableFuture<Set<String>> future : files) {
+      assertThat(future.get(30, TimeUnit.SECONDS)).containsExactly("file.txt");
+    }
+    asyncHandler.destroy();
+    assertThat(asyncHandler.getQueueDepth(repo)).isZero();
+  }
+
+  @Test
+  public void test_async_commands_are_rejected_after_destroy() throws Exception {
+    File repo = getRepoPath();
+    writeFile(repo, "Destroyed");
+    GitCommandHandler asyncHandler = new GitCommandHandler();
+    CompletableFuture<Set<String>> files = asyncHandler.executeAsync(new ListFilesCommand.Builder(repo).build());
+    asyncHandler.destroy();
+    // queued before destroy, executed
+    assertThat(files.get(30, TimeUnit.SECONDS)).containsExactly("file.txt");
+
+    try {
+      asyncHandler.executeAsync(new ListFilesCommand.Builder(repo).build());
+      fail("Expected RejectedExecutionException");
+    } catch(RejectedExecutionException e) {
+      // expected
+    }
+    assertThat(asyncHandler.getQueueDepth(repo)).isZero();
+  }
+
+  @Test
+  public void test_async_writes_are_committed_in_submission_order() throws Exception {
+    File repo = getRepoPath();
+    writeFile(repo, "Initial");
+    GitCommandHandler asyncHandler = new GitCommandHandler();
+    int writes = 10;
+
+    List<CompletableFuture<Iterable<PushResult>>> futures = new ArrayList<>();
+    // all the writes are queued before the first one can start
+    Lock writeLock = asyncHandler.getReadWriteLock(repo).writeLock();
+    writeLock.lock();
+    try {
+      for(int i = 0; i < writes; i++) {
+        futures.add(asyncHandler.executeAsync(new AddFilesCommand.Builder(repo, "Write " + i) //
+            .addFile("file.txt", new ByteArrayInputStream(("Write " + i).getBytes(Charsets.UTF_8))) //
+            .build()));
+      }
+      CompletableFuture<String> read = asyncHandler.executeAsync(new FetchBlobCommand.Builder(repo, "file.txt").build());
+      writeLock.unlock();
+      writeLock = null;
+      assertThat(read.get(1, TimeUnit.MINUTES)).isEqualTo("Write " + (writes - 1));
+    } finally {
+      if(writeLock != null) writeLock.unlock();
+    }
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(1, TimeUnit.MINUTES);
+
+    List<String> comments = new ArrayList<>();
+    asyncHandler.execute(new LogsCommand.Builder(repo).maxCount(writes).build())
+        .forEach(commit -> comments.add(commit.getComment()));
+    assertThat(Lists.reverse(comments)).containsExactly(
+        IntStream.range(0, writes).mapToObj(i -> "Write " + i).toArray(String[]::new));
+    asyncHandler.destroy();
+  }
+
+  @Test
+  public void test_repositories_are_opened_once() throws Exception {
+    RepositoryPool pool = new RepositoryPool();
+    handler.setRepositoryPool(pool);
+    File repo = getRepoPath();
+    writeFile(repo, "Pooled");
+    long misses = pool.getMissCount();
+
+    for(int i = 0; i < 10; i++) {
+      assertThat(handler.execute(new ListFilesCommand.Builder(repo).build())).containsExactly("file.txt");
+    }
+    // the bare repository was modified through a clone by the write, it is opened once more then reused
+    assertThat(pool.getMissCount() - misses).isEqualTo(1);
+    assertThat(pool.getHitCount()).isGreaterThanOrEqualTo(9);
+  }
+
+  @Test
+  public void test_metrics() throws Exception {
+    File repo = getRepoPath();
+    InMemoryGitMetricsListener metrics = new InMemoryGitMetricsListener();
+    GitCommandHandler instrumentedHandler = new GitCommandHandler();
+    instrumentedHandler.setMetricsListener(metrics);
+
+    instrumentedHandler.execute(new AddFilesCommand.Builder(repo, "Metrics") //
+        .addFile("file.txt", new ByteArrayInputStream("Metrics".getBytes(Charsets.UTF_8))) //
+        .build());
+    instrumentedHandler.executeAsync(new ListFilesCommand.Builder(repo).build()).get(30, TimeUnit.SECONDS);
+
+    for(GitMetricsListener.Phase phase : GitMetricsListener.Phase.values()) {
+      assertThat(metrics.getTimer(phase, AddFilesCommand.class).getCount()).isEqualTo(1);
+    }
+    // listing files is done in the bare repository
+    assertThat(metrics.getTimer(GitMetricsListener.Phase.LOCK_WAIT, ListFilesCommand.class).getCount()).isEqualTo(1);
+    assertThat(metrics.getTimer(GitMetricsListener.Phase.EXECUTE, ListFilesCommand.class).getCount()).isEqualTo(1);
+    assertThat(metrics.getTimer(GitMetricsListener.Phase.FETCH, ListFilesCommand.class).getCount()).isZero();
+    assertThat(metrics.getTimer(GitMetricsListener.Phase.EXECUTE, AddFilesCommand.class).getMaxNanos()).isPositive();
+    assertThat(metrics.getActiveLocks(repo)).isZero();
+    assertThat(metrics.getQueueDepth(repo)).isZero();
+    instrumentedHandler.destroy();
+  }
+
+  @Test
+  public void test_metrics_listener_is_called_after_the_gauges_update() throws Exception {
+    File repo = getRepoPath();
+    writeFile(repo, "Gauges");
+    GitCommandHandler instrumentedHandler = new GitCommandHandler();
+    List<Integer> reported = Collections.synchronizedList(new ArrayList<>());
+    List<Integer> observed = Collections.synchronizedList(new ArrayList<>());
+    instrumentedHandler.setMetricsListener(new InMemoryGitMetricsListener() {
+      @Override
+      public void onQueueDepth(File repositoryPath, int depth) {
+        reported.add(depth);
+        // the listener may query the handler: the gauge was already updated
+        observed.add(instrumentedHandler.getQueueDepth(repositoryPath));
+      }
+    });
+
+    instrumentedHandler.executeAsync(new ListFilesCommand.Builder(repo).build()).get(30, TimeUnit.SECONDS);
+
+    assertThat(reported).containsExactly(1, 0);
+    assertThat(observed).isEqualTo(reported);
+    instrumentedHandler.destroy();
+  }
+
+  @Test
+  public void test_prewarm_clones() throws Exception {
+    File repo1 = getRepoPath();
+    File repo2 = getRepoPath();
+    writeFile(repo1, "Repository 1");
+    writeFile(repo2, "Repository 2");
+    File workPath = new File(testFolder, "prewarm");
+
+    handler.prewarm(List.of(repo1, repo2), workPath).get(30, TimeUnit.SECONDS);
+
+    assertThat(workPath.list()).hasSize(2);
+    for(String clone : workPath.list()) {
+      assertThat(new File(workPath, clone + "/file.txt")).exists();
+    }
+  }
+
+  @Test
+  public void test_clones_exceeding_disk_budget_are_evicted() throws Exception {
+    File repo = getRepoPath();
+    writeFile(repo, "Evicted");
+    File workPath = new File(testFolder, "evicted");
+    GitCommandHandler budgetHandler = new GitCommandHandler();
+    CloneManager cloneManager = new CloneManager(1);
+    budgetHandler.setCloneManager(cloneManager);
+    budgetHandler.setBareReadEnabled(false);
+
+    assertThat(budgetHandler.execute(new ListFilesCommand.Builder(repo, workPath).build())).containsExactly("file.txt");
+    assertThat(workPath.list()).isEmpty();
+    assertThat(cloneManager.size()).isZero();
+    budgetHandler.destroy();
+  }
+
+  @Test
+  public void test_maintenance_of_written_repositories() throws Exception {
+    File repo = getRepoPath();
+    GitCommandHandler maintainedHandler = new GitCommandHandler();
+    maintainedHandler.setBareWriteEnabled(true);
+    MaintenanceScheduler maintenance = new MaintenanceScheduler();
+    maintenance.setWriteThreshold(3);
+    maintenance.setQuietPeriod(Duration.ZERO);
+    maintenance.setCheckInterval(Duration.ofHours(1));
+    maintainedHandler.setMaintenanceScheduler(maintenance);
+    try {
+      for(int i = 0; i < 3; i++) {
+        maintainedHandler.execute(new AddFilesCommand.Builder(repo, "Update " + i) //
+            .addFile("file" + i + ".txt", new ByteArrayInputStream(("File " + i).getBytes(Charsets.UTF_8))) //
+            .build());
+      }
+      assertThat(maintenance.getWriteCount(repo)).isEqualTo(3);
+      try {
+        maintainedHandler.execute(new AddFilesCommand.Builder(repo, "") //
+            .addFile("failed.txt", new ByteArrayInputStream("Failed".getBytes(Charsets.UTF_8))) //
+            .build());
+        fail("Expected GitException");
+      } catch(GitException e) {
+        // failed writes are not counted
+        assertThat(maintenance.getWriteCount(repo)).isEqualTo(3);
+      }
+
+      // outside of the maintenance window
+      LocalTime now = LocalTime.now();
+      maintenance.setMaintenanceWindow(now.plusHours(1), now.plusHours(2));
+      maintenance.maintainQuietRepositories();
+      assertThat(maintenance.getLastMaintenance(repo)).isNull();
+
+      maintenance.setMaintenanceWindow(null, null);
+      maintenance.maintainQuietRepositories();
+      MaintenanceInfo info = maintenance.getLastMaintenance(repo);
+      assertThat(info).isNotNull();
+      assertThat(info.getBefore().getLooseObjects()).isPositive();
+      assertThat(info.getAfter().getLooseObjects()).isZero();
+      assertThat(info.getAfter().getPackFiles()).isPositive();
+      assertThat(maintenance.getWriteCount(repo)).isZero();
+      assertThat(maintainedHandler.execute(new ListFilesCommand.Builder(repo).build())).hasSize(3);
+    } finally {
+      maintainedHandler.destroy();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_maintenance_window_bounds_must_differ() {
+    LocalTime time = LocalTime.of(2, 0);
+    new MaintenanceScheduler().setMaintenanceWindow(time, time);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void test_maintenance_requires_a_handler() throws Exception {
+    new MaintenanceScheduler().maintain(getRepoPath());
+  }
+
+  private Callable<String> writeThenRead(File repo, String content) {
+    return () -> {
+      for(int round = 0; round < 3; round++) {
+        writeFile(repo, content + " round " + round);
+      }
+      return readFile(repo, "file.txt");
+    };
+  }
+
+  private void writeFile(File repo, String content) {
+    InputStream input = new ByteArrayInputStream(content.getBytes(Charsets.UTF_8));
+    handler.execute(new AddFilesCommand.Builder(repo, "Update").addFile("file.txt", input).build());
+  }
+
+  private String readFile(File repo, String path) throws IOException {
+    InputStream inputStream = handler.execute(new ReadFileCommand.Builder(repo, path).build());
+    return CharStreams.toString(new InputStreamReader(inputStream, Charsets.UTF_8));
+  }
+
+  private File getRepoPath() throws IOException {
+    File repo = File.createTempFile("obiba", ".git", testFolder);
+    // delete it so we create a new repo
+    if(!repo.delete()) {
+      throw new IllegalStateException("Cannot delete git repo " + repo.getAbsolutePath());
+    }
+    return repo;
+  }
+}
@@ -10,19 +10,35 @@
 
 package org.obiba.git.command;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.mgt.DefaultSecurityManager;
 import org.eclipse.jgit.api.errors.NoMessageException;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -30,14 +46,17 @@ import org.obiba.core.util.FileUtil;
 import org.obiba.git.CommitInfo;
 import org.obiba.git.GitException;
 import org.obiba.git.NoSuchGitRepositoryException;
+import org.obiba.git.PathHistoryIndex;
 import org.obiba.git.TagInfo;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.Iterables;
+import com.google.common.io.ByteSource;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Files;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.fail;
 
 public class GitCommandsTest {
@@ -60,6 +79,36 @@ public class GitCommandsTest {
     }
   }
 
+  @Test
+  public void test_commit_logs() throws Exception {
+    File repo = getRepoPath();
+    createDummyFiles(repo);
+    String firstCommitId = Iterables.getFirst(handler.execute(new LogsCommand.Builder(repo).build()), null)
+        .getCommitId();
+    try(InputStream input = new FileInputStream(createFile("Version 2"))) {
+      handler.execute(new AddFilesCommand.Builder(repo, "Second commit").addFile("root.txt", input).build());
+    }
+    String secondCommitId = Iterables.getFirst(handler.execute(new LogsCommand.Builder(repo).build()), null)
+        .getCommitId();
+
+    List<CommitInfo> commitInfos = handler.execute(new CommitLogsCommand.Builder(repo) //
+        .add("root.txt", secondCommitId) //
+        .add("root.txt", firstCommitId) //
+        .add("dir/file.txt", firstCommitId) //
+        .build());
+    assertThat(commitInfos).extracting(CommitInfo::getComment)
+        .containsExactly("Second commit", "Initial commit", "Initial commit");
+    assertThat(commitInfos).extracting(CommitInfo::isHead).containsExactly(true, false, false);
+    assertThat(commitInfos).extracting(CommitInfo::isCurrent).containsExactly(true, false, true);
+
+    try {
+      handler.execute(new CommitLogsCommand.Builder(repo).add("none.txt", firstCommitId).build());
+      fail("Should have thrown GitException");
+    } catch(GitException e) {
+      assertThat(e.getMessage()).contains("none.txt");
+    }
+  }
+
   @Test
   @SuppressWarnings("ConstantConditions")
   public void test_create_read_files() throws Exception {
@@ -147,6 +196,35 @@ public class GitCommandsTest {
     assertThat(commitInfo.getComment()).isEqualTo("Initial commit");
   }
 
+  @Test
+  public void test_exclude_file_delete_commits_in_long_history() throws Exception {
+    File repo = getRepoPath();
+    createDummyFiles(repo);
+
+    // every third commit only deletes the file added by the previous one
+    int commits = 60;
+    for(int i = 0; i < commits; i++) {
+      if(i % 3 == 2) {
+        handler.execute(new DeleteFilesCommand.Builder(repo, "file" + (i - 1) + ".txt", "Delete " + i).build());
+      } else {
+        try(InputStream input = new FileInputStream(createFile("Version " + i))) {
+          handler.execute(
+              new AddFilesCommand.Builder(repo, "Add " + i).addFile("file" + i + ".txt", input).build());
+        }
+      }
+    }
+
+    Iterable<CommitInfo> all = handler.execute(new LogsCommand.Builder(repo).build());
+    assertThat(all).hasSize(commits + 1);
+    Iterable<CommitInfo> filtered = handler
+        .execute(new LogsCommand.Builder(repo).excludeDeletedCommits(true).build());
+    assertThat(filtered).hasSize(commits / 3 * 2 + 1);
+    assertThat(filtered).extracting(CommitInfo::getComment).allMatch(comment -> !comment.startsWith("Delete"));
+    // a deleted path keeps its addition only
+    assertThat(handler.execute(new LogsCommand.Builder(repo).path("file1.txt").excludeDeletedCommits(true).build()))
+        .extracting(CommitInfo::getComment).containsExactly("Add 1");
+  }
+
   @Test(expected = NoSuchGitRepositoryException.class)
   public void test_read_files_from_invalid_repo() throws Exception {
     handler.execute(new ReadFileCommand.Builder(getRepoPath(), "file.txt").build());
@@ -170,6 +248,98 @@ public class GitCommandsTest {
     assertThat(readFile(repo, "root.txt")).isEqualTo("Version 2");
   }
 
+  @Test
+  public void test_only_added_files_are_staged() throws Exception {
+    File repo = getRepoPath();
+    File workPath = new File(testFolder, "staging");
+
+    try(InputStream input = new FileInputStream(createFile("Version 1"))) {
+      handler.execute(new AddFilesCommand.Builder(repo, workPath, "First commit").addFile("dir/root.txt", input) //
+          .build());
+    }
+    String name = repo.getName();
+    Files.write("Not to be committed", new File(workPath, name.substring(0, name.lastIndexOf(".git")) + "/stray.txt"),
+        Charsets.UTF_8);
+    try(InputStream input = new FileInputStream(createFile("Version 2"))) {
+      handler.execute(new AddFilesCommand.Builder(repo, workPath, "Second commit").addFile("dir/root.txt", input) //
+          .build());
+    }
+
+    assertThat(handler.execute(new ListFilesCommand.Builder(repo).recursive(true).build()))
+        .containsExactly("dir/root.txt");
+    assertThat(readFile(repo, "dir/root.txt")).isEqualTo("Version 2");
+  }
+
+  @Test
+  public void test_logs_paging() throws Exception {
+    File repo = getRepoPath();
+    for(int i = 1; i <= 3; i++) {
+      try(InputStream input = new FileInputStream(createFile("Version " + i))) {
+        handler.execute(new AddFilesCommand.Builder(repo, "Commit " + i).addFile("root.txt", input).build());
+      }
+    }
+
+    Iterable<CommitInfo> commitInfos = handler.execute(new LogsCommand.Builder(repo).maxCount(2).build());
+    assertThat(commitInfos).extracting(CommitInfo::getComment).containsExactly("Commit 3", "Commit 2");
+    assertThat(Iterables.getFirst(commitInfos, null).isCurrent()).isTrue();
+
+    commitInfos = handler.execute(new LogsCommand.Builder(repo).path("root.txt").skip(1).maxCount(5).build());
+    assertThat(commitInfos).extracting(CommitInfo::getComment).containsExactly("Commit 2", "Commit 1");
+    assertThat(Iterables.getFirst(commitInfos, null).isCurrent()).isFalse();
+
+    Date tomorrow = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+    assertThat(handler.execute(new LogsCommand.Builder(repo).since(tomorrow).build())).isEmpty();
+    assertThat(handler.execute(new LogsCommand.Builder(repo).until(tomorrow).build())).hasSize(3);
+  }
+
+  @Test
+  @SuppressWarnings("ConstantConditions")
+  public void test_path_history() throws Exception {
+    File repo = getRepoPath();
+    createDummyFiles(repo);
+    String firstCommitId = Iterables.getFirst(handler.execute(new LogsCommand.Builder(repo).build()), null)
+        .getCommitId();
+    try(InputStream input = new FileInputStream(createFile("Version 2"))) {
+      handler.execute(new AddFilesCommand.Builder(repo, "Second commit").addFile("root.txt", input).build());
+    }
+
+    for(int i = 0; i < 2; i++) {
+      assertThat(handler.execute(new LogsCommand.Builder(repo).path("root.txt").build()))
+          .extracting(CommitInfo::getComment).containsExactly("Second commit", "Initial commit");
+      assertThat(handler.execute(new LogsCommand.Builder(repo).path("dir/file.txt").build()))
+          .extracting(CommitInfo::getComment).containsExactly("Initial commit");
+      assertThat(handler.execute(new CommitLogCommand.Builder(repo, "dir/file.txt", firstCommitId).build()).isCurrent())
+          .isTrue();
+      assertThat(handler.execute(new CommitLogCommand.Builder(repo, "root.txt", firstCommitId).build()).isCurrent())
+          .isFalse();
+      // index is rebuilt when missing
+      PathHistoryIndex.invalidate(repo);
+    }
+
+    // the index is built in memory by reads and only written by writes
+    File indexFile = new File(repo, "obiba-path-history");
+    assertThat(handler.execute(new LogsCommand.Builder(repo).path("root.txt").build())).hasSize(2);
+    assertThat(indexFile).doesNotExist();
+    try(InputStream input = new FileInputStream(createFile("Version 3"))) {
+      handler.execute(new AddFilesCommand.Builder(repo, "Third commit").addFile("root.txt", input).build());
+    }
+    assertThat(indexFile).exists();
+    assertThat(handler.execute(new LogsCommand.Builder(repo).path("root.txt").build()))
+        .extracting(CommitInfo::getComment).containsExactly("Third commit", "Second commit", "Initial commit");
+
+    // current commits are the same with the index and by walking the history of each path
+    String thirdCommitId = Iterables.getFirst(handler.execute(new LogsCommand.Builder(repo).build()), null)
+        .getCommitId();
+    for(int i = 0; i < 2; i++) {
+      assertThat(handler.execute(new CommitLogsCommand.Builder(repo) //
+          .add("root.txt", thirdCommitId) //
+          .add("root.txt", firstCommitId) //
+          .add("dir/file.txt", firstCommitId) //
+          .build())).extracting(CommitInfo::isCurrent).containsExactly(true, false, true);
+      PathHistoryIndex.invalidate(repo);
+    }
+  }
+
   @Test
   @SuppressWarnings("ConstantConditions")
   public void test_tags() throws Exception {
@@ -195,6 +365,46 @@ public class GitCommandsTest {
     assertThat(readFileFromCommit(repo, "root.txt", tagInfo.getCommitId())).isEqualTo("Version 1");
   }
 
+  @Test
+  public void test_read_file_size() throws Exception {
+    File repo = getRepoPath();
+    createDummyFiles(repo);
+    String commitId = Iterables.getFirst(handler.execute(new LogsCommand.Builder(repo).build()), null).getCommitId();
+
+    ReadFileCommand command = new ReadFileCommand.Builder(repo, "root.txt").commitId(commitId).build();
+    try(ObjectStream stream = handler.execute(command)) {
+      assertThat(stream.getSize()).isEqualTo("This is root file".length());
+      assertThat(readInputStream(stream)).isEqualTo("This is root file");
+    }
+    try(ObjectStream stream = handler.execute(new ReadFileCommand.Builder(repo, "root.txt").build())) {
+      assertThat(stream.getSize()).isEqualTo("This is root file".length());
+    }
+  }
+
+  @Test
+  public void test_read_large_file_after_release() throws Exception {
+    File repo = getRepoPath();
+    createDummyFiles(repo);
+    String commitId = Iterables.getFirst(handler.execute(new LogsCommand.Builder(repo).build()), null).getCommitId();
+
+    RepositoryPool pool = new RepositoryPool();
+    handler.setRepositoryPool(pool);
+
+    WindowCacheConfig config = new WindowCacheConfig();
+    config.setStreamFileThreshold(8);
+    config.install();
+    ReadFileCommand command = new ReadFileCommand.Builder(repo, "root.txt").commitId(commitId).build();
+    try(ObjectStream stream = handler.execute(command)) {
+      // the repository is closed once the command is done, the stream must not depend on it
+      pool.clear();
+      assertThat(pool.size()).isZero();
+      assertThat(stream.getSize()).isEqualTo("This is root file".length());
+      assertThat(readInputStream(stream)).isEqualTo("This is root file");
+    } finally {
+      new WindowCacheConfig().install();
+    }
+  }
+
   @Test
   public void test_list_files_of_empty_repo() throws Exception {
     File repo = getRepoPath();
@@ -250,6 +460,131 @@ public class GitCommandsTest {
     }
   }
 
+  @Test
+  public void test_reading_files_by_path() throws Exception {
+    File repo = getRepoPath();
+    createDummyFiles(repo);
+
+    try(ReadFilesByPathCommand.FileContents files = handler.execute(
+        new ReadFilesByPathCommand.Builder(repo).recursive(true).filter("\\/_titi\\.txt|^root|\\.xml$").build())) {
+      assertThat(files.keySet()).containsExactly("dir/tata/_titi.txt", "dir/toto.xml", "root.txt");
+      assertThat(files.get("root.txt").asCharSource(Charsets.UTF_8).read()).isEqualTo("This is root file");
+      assertThat(files.get("dir/toto.xml").size()).isEqualTo("This is another file in dir".length());
+    }
+  }
+
+  @Test
+  public void test_reading_large_files_by_path_after_release() throws Exception {
+    File repo = getRepoPath();
+    createDummyFiles(repo);
+    RepositoryPool pool = new RepositoryPool();
+    handler.setRepositoryPool(pool);
+
+    WindowCacheConfig config = new WindowCacheConfig();
+    config.setStreamFileThreshold(8);
+    config.install();
+    try {
+      ByteSource content;
+      try(ReadFilesByPathCommand.FileContents files = handler.execute(
+          new ReadFilesByPathCommand.Builder(repo).build())) {
+        // the repository is closed once the command is done, the sources must not depend on it
+        pool.clear();
+        content = files.get("root.txt");
+        assertThat(content.asCharSource(Charsets.UTF_8).read()).isEqualTo("This is root file");
+        assertThat(content.size()).isEqualTo("This is root file".length());
+      }
+      // temporary file deleted on close
+      assertThatThrownBy(content::read).isInstanceOf(IOException.class);
+    } finally {
+      new WindowCacheConfig().install();
+    }
+  }
+
+  @Test
+  public void test_archive() throws Exception {
+    File repo = getRepoPath();
+    createDummyFiles(repo);
+
+    ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+    assertThat(handler.execute(new ArchiveCommand.Builder(repo, zipOutput).prefix("project/").build())).isEqualTo(5);
+    Map<String, String> zipEntries = new HashMap<>();
+    try(ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(zipOutput.toByteArray()))) {
+      for(ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        zipEntries.put(entry.getName(), readInputStream(zip));
+      }
+    }
+    assertThat(zipEntries).hasSize(5).containsEntry("project/root.txt", "This is root file")
+        .containsEntry("project/dir/tata/_titi.txt", "This is with folders");
+
+    ByteArrayOutputStream tarOutput = new ByteArrayOutputStream();
+    assertThat(handler.execute(
+        new ArchiveCommand.Builder(repo, tarOutput).format(ArchiveCommand.Format.TAR_GZ).build())).isEqualTo(5);
+    Map<String, String> tarEntries = new HashMap<>();
+    try(DataInputStream tar = new DataInputStream(
+        new GZIPInputStream(new ByteArrayInputStream(tarOutput.toByteArray())))) {
+      byte[] header = new byte[512];
+      for(tar.readFully(header); header[0] != 0; tar.readFully(header)) {
+        String name = new String(header, 0, 100, Charsets.UTF_8).trim();
+        int size = Integer.parseInt(new String(header, 124, 11, Charsets.US_ASCII), 8);
+        byte[] content = new byte[(size + 511) / 512 * 512];
+        tar.readFully(content);
+        tarEntries.put(name, new String(content, 0, size, Charsets.UTF_8));
+      }
+    }
+    assertThat(tarEntries).hasSize(5).containsEntry("dir/toto.xml", "This is another file in dir");
+  }
+
+  @Test
+  public void test_archive_is_written_without_lock() throws Exception {
+    File repo = getRepoPath();
+    createDummyFiles(repo);
+    ReentrantReadWriteLock lock = (ReentrantReadWriteLock) handler.getReadWriteLock(repo);
+    List<Integer> readLocks = new ArrayList<>();
+    OutputStream output = new OutputStream() {
+      @Override
+      public void write(int b) {
+        readLocks.add(lock.getReadLockCount());
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        readLocks.add(lock.getReadLockCount());
+      }
+    };
+    assertThat(handler.execute(new ArchiveCommand.Builder(repo, output).build())).isEqualTo(5);
+    assertThat(readLocks).isNotEmpty().containsOnly(0);
+  }
+
+  @Test
+  public void test_archive_of_empty_repo() throws Exception {
+    File repo = getRepoPath();
+    ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+    assertThat(handler.execute(new ArchiveCommand.Builder(repo, zipOutput).build())).isEqualTo(0);
+    try(ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(zipOutput.toByteArray()))) {
+      assertThat(zip.getNextEntry()).isNull();
+    }
+  }
+
+  @Test
+  public void test_diff_stream() throws Exception {
+    File repo = getRepoPath();
+    createDummyFiles(repo);
+    try(InputStream input = new FileInputStream(createFile("This is the new root file"))) {
+      handler.execute(new AddFilesCommand.Builder(repo, "Second commit").addFile("root.txt", input).build());
+    }
+    String commitId = Iterables.getFirst(handler.execute(new LogsCommand.Builder(repo).build()), null).getCommitId();
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    assertThat(handler.execute(new DiffStreamCommand.Builder(repo, commitId, output).detectRenames(false).build()))
+        .isEqualTo(1);
+    assertThat(output.toString(Charsets.UTF_8)).contains("diff --git a/root.txt b/root.txt", "-This is root file",
+        "+This is the new root file");
+
+    output.reset();
+    handler.execute(new DiffStreamCommand.Builder(repo, commitId, output).binaryFileThreshold(10).build());
+    assertThat(output.toString(Charsets.UTF_8)).contains("Binary files differ").doesNotContain("-This is root file");
+  }
+
   private void createDummyFiles(File repo) throws IOException {
     try(InputStream input1 = new FileInputStream(createFile("This is root file"));
         InputStream input2 = new FileInputStream(createFile("This is a file in dir"));
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.git.command;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.obiba.core.util.FileUtil;
+
+import com.google.common.io.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RepositoryPoolTest {
+
+  private static File testFolder;
+
+  @BeforeClass
+  public static void init() {
+    testFolder = Files.createTempDir();
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    try {
+      FileUtil.delete(testFolder);
+    } catch(IOException e) {
+    }
+  }
+
+  @Test
+  public void test_same_repository_is_reused() throws Exception {
+    RepositoryPool pool = new RepositoryPool();
+    File repo = createRepository();
+
+    Repository first = pool.acquire(repo);
+    pool.release(first);
+    Repository second = pool.acquire(repo);
+    pool.release(second);
+
+    assertThat(second).isSameAs(first);
+    assertThat(pool.getMissCount()).isEqualTo(1);
+    assertThat(pool.getHitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void test_least_recently_used_is_evicted() throws Exception {
+    RepositoryPool pool = new RepositoryPool(2, RepositoryPool.DEFAULT_IDLE_TIMEOUT);
+    File repo1 = createRepository();
+    File repo2 = createRepository();
+    File repo3 = createRepository();
+
+    Repository first = pool.acquire(repo1);
+    pool.release(first);
+    pool.release(pool.acquire(repo2));
+    pool.release(pool.acquire(repo3));
+    assertThat(pool.size()).isEqualTo(2);
+
+    Repository again = pool.acquire(repo1);
+    pool.release(again);
+    assertThat(again).isNotSameAs(first);
+  }
+
+  @Test
+  public void test_repository_in_use_is_not_evicted() throws Exception {
+    RepositoryPool pool = new RepositoryPool(1, 0);
+    File repo1 = createRepository();
+    File repo2 = createRepository();
+
+    Repository inUse = pool.acquire(repo1);
+    pool.release(pool.acquire(repo2));
+    assertThat(inUse.getRefDatabase().getRefs()).isEmpty();
+
+    Repository again = pool.acquire(repo1);
+    assertThat(again).isSameAs(inUse);
+    pool.release(again);
+    pool.release(inUse);
+  }
+
+  @Test
+  public void test_invalidated_repository_is_replaced() throws Exception {
+    RepositoryPool pool = new RepositoryPool();
+    File repo = createRepository();
+
+    Repository inUse = pool.acquire(repo);
+    pool.invalidate(repo);
+    Repository fresh = pool.acquire(repo);
+    assertThat(fresh).isNotSameAs(inUse);
+
+    pool.release(inUse);
+    pool.release(fresh);
+    assertThat(pool.size()).isEqualTo(1);
+  }
+
+  private File createRepository() throws IOException {
+    File repo = File.createTempFile("obiba", ".git", testFolder);
+    if(!repo.delete()) {
+      throw new IllegalStateException("Cannot delete git repo " + repo.getAbsolutePath());
+    }
+    try(Repository repository = new FileRepository(repo)) {
+      repository.create(true);
+    }
+    return repo;
+  }
+}
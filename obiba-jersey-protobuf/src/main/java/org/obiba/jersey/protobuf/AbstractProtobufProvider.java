@@ -9,11 +9,13 @@
  */
 package org.obiba.jersey.protobuf;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Type;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.stream.Stream;
 
 import jakarta.ws.rs.WebApplicationException;
 
@@ -25,107 +27,193 @@ import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.Message;
 import com.google.protobuf.Message.Builder;
 
+/**
+ * Base class of the protobuf providers. The default instance and the extension registry of each message type are looked
+ * up once and cached per class: builders are then created from the default instance, without reflection.
+ */
 public abstract class AbstractProtobufProvider {
 
   private static final Logger log = LoggerFactory.getLogger(AbstractProtobufProvider.class);
 
+  /**
+   * Default instance per message type, obtained once from its static 'getDefaultInstance' method.
+   */
+  private static final ClassValue<Message> DEFAULT_INSTANCES = new ClassValue<>() {
+    @Override
+    protected Message computeValue(Class<?> type) {
+      MethodHandle getDefaultInstance = findStaticMethod("getDefaultInstance", type, MethodType.methodType(type));
+      return (Message) invokeStaticMethod(getDefaultInstance, type);
+    }
+  };
+
   private final BuilderFactory builderFactory = new BuilderFactory();
 
+  private final DescriptorFactory descriptorFactory = new DescriptorFactory();
+
   private final ExtensionRegistryFactory extensionRegistryFactory = new ExtensionRegistryFactory();
 
+  private int flushInterval = 0;
+
+  /**
+   * Number of messages of a collection or a stream after which the entity stream is flushed, so that the client starts
+   * receiving them. 0 (default) lets the container decide.
+   *
+   * @param flushInterval
+   */
+  public void setFlushInterval(int flushInterval) {
+    this.flushInterval = flushInterval;
+  }
+
+  int getFlushInterval() {
+    return flushInterval;
+  }
+
   BuilderFactory builders() {
     return builderFactory;
   }
 
+  DescriptorFactory descriptors() {
+    return descriptorFactory;
+  }
+
   ExtensionRegistryFactory extensions() {
     return extensionRegistryFactory;
   }
 
   @SuppressWarnings("unchecked")
   Class<Message> extractMessageType(Class<?> type, Type genericType) {
-    return isWrapped(type, genericType) ? Types.getCollectionBaseType(type, genericType) : (Class<Message>) type;
+    return isWrapped(type, genericType) || isStreamed(type, genericType)
+        ? Types.getCollectionBaseType(type, genericType)
+        : (Class<Message>) type;
   }
 
   boolean isWrapped(Class<?> type, Type genericType) {
     if((Iterable.class.isAssignableFrom(type) || type.isArray()) && genericType != null) {
-      Class<?> baseType = Types.getCollectionBaseType(type, genericType);
-      return baseType != null && Message.class.isAssignableFrom(baseType);
+      return isMessageBaseType(type, genericType);
     }
     return false;
   }
 
-  protected static final class DescriptorFactory {
+  /**
+   * Messages produced while being written: {@link Stream} or {@link Iterator}.
+   */
+  boolean isStreamed(Class<?> type, Type genericType) {
+    if((Stream.class.isAssignableFrom(type) || Iterator.class.isAssignableFrom(type)) && genericType != null) {
+      return isMessageBaseType(type, genericType);
+    }
+    return false;
+  }
 
-    private final Map<Class<?>, Method> methodCache = new HashMap<>();
+  private boolean isMessageBaseType(Class<?> type, Type genericType) {
+    Class<?> baseType = Types.getCollectionBaseType(type, genericType);
+    return baseType != null && Message.class.isAssignableFrom(baseType);
+  }
 
-    Descriptor forMessage(Class<Message> messageType) {
-      if(messageType == null) throw new IllegalArgumentException("messageType cannot be null");
-      return (Descriptor) invokeStaticMethod(extractStaticMethod("getDescriptor", methodCache, messageType));
+  @SuppressWarnings("unchecked")
+  static Iterator<Message> iterator(Object messages) {
+    if(messages instanceof Stream<?> stream) return (Iterator<Message>) stream.iterator();
+    if(messages instanceof Iterator<?> iterator) return (Iterator<Message>) iterator;
+    if(messages instanceof Message[] array) return Arrays.asList(array).iterator();
+    return ((Iterable<Message>) messages).iterator();
+  }
+
+  /**
+   * Release the source of the messages (database cursor...) once written or when the client disconnected.
+   *
+   * @param messages
+   */
+  static void closeSource(Object messages) {
+    if(messages instanceof AutoCloseable closeable) {
+      try {
+        closeable.close();
+      } catch(Exception e) {
+        log.warn("Error closing the source of the messages: {}", e.getMessage());
+      }
     }
+  }
 
+  /**
+   * Look up the default instance and the extension registry of the given message types, so that the first requests
+   * using them do not pay for it.
+   *
+   * @param messageTypes
+   */
+  @SafeVarargs
+  public final void register(Class<? extends Message>... messageTypes) {
+    for(Class<? extends Message> messageType : messageTypes) {
+      DEFAULT_INSTANCES.get(messageType);
+      extensionRegistryFactory.forMessage(messageType);
+    }
   }
 
-  protected static final class ExtensionRegistryFactory {
+  protected static final class DescriptorFactory {
 
-    private final Map<Class<?>, ExtensionRegistry> registryCache = new HashMap<>();
+    Descriptor forMessage(Class<? extends Message> messageType) {
+      if(messageType == null) throw new IllegalArgumentException("messageType cannot be null");
+      return DEFAULT_INSTANCES.get(messageType).getDescriptorForType();
+    }
 
-    private final Map<Class<?>, Method> methodCache = new HashMap<>();
+  }
 
-    ExtensionRegistry forMessage(Class<Message> messageType) {
-      if(messageType == null) throw new IllegalArgumentException("messageType cannot be null");
+  protected static final class ExtensionRegistryFactory {
 
-      Class<?> enclosingType = messageType.getEnclosingClass();
-      if(!registryCache.containsKey(enclosingType)) {
+    /**
+     * Extension registry per enclosing class of the message types (the class generated for a proto file).
+     */
+    private final ClassValue<ExtensionRegistry> registryCache = new ClassValue<>() {
+      @Override
+      protected ExtensionRegistry computeValue(Class<?> enclosingType) {
+        MethodHandle registerAllExtensions = findStaticMethod("registerAllExtensions", enclosingType,
+            MethodType.methodType(void.class, ExtensionRegistry.class));
         ExtensionRegistry registry = ExtensionRegistry.newInstance();
-        invokeStaticMethod(extractStaticMethod("registerAllExtensions", methodCache, messageType.getEnclosingClass(),
-            ExtensionRegistry.class), registry);
-        registryCache.put(enclosingType, registry);
+        invokeStaticMethod(registerAllExtensions, enclosingType, registry);
+        // read concurrently by the requests
+        return registry.getUnmodifiable();
       }
-      return registryCache.get(enclosingType);
+    };
+
+    ExtensionRegistry forMessage(Class<? extends Message> messageType) {
+      if(messageType == null) throw new IllegalArgumentException("messageType cannot be null");
+      Class<?> enclosingType = messageType.getEnclosingClass();
+      // message generated in its own file, without extensions
+      return enclosingType == null ? ExtensionRegistry.getEmptyRegistry() : registryCache.get(enclosingType);
     }
   }
 
   protected static final class BuilderFactory {
 
-    private final Map<Class<?>, Method> methodCache = new HashMap<>();
-
-    Builder forMessage(Class<Message> messageType) {
+    Builder forMessage(Class<? extends Message> messageType) {
       if(messageType == null) throw new IllegalArgumentException("messageType cannot be null");
-      return (Builder) invokeStaticMethod(extractStaticMethod("newBuilder", methodCache, messageType));
+      return DEFAULT_INSTANCES.get(messageType).newBuilderForType();
     }
 
   }
 
-  private static Object invokeStaticMethod(Method method, Object... arguments) {
+  private static Object invokeStaticMethod(MethodHandle method, Class<?> type, Object... arguments) {
     if(method == null) throw new IllegalArgumentException("method cannot be null");
 
     try {
-      return method.invoke(null, arguments);
+      return method.invokeWithArguments(arguments);
     } catch(WebApplicationException e) {
       throw e;
-    } catch(RuntimeException | InvocationTargetException | IllegalAccessException e) {
-      log.error("Error invoking '{}' method for type {}", method.getName(), method.getDeclaringClass().getName(), e);
+    } catch(Throwable e) {
+      log.error("Error invoking static method {} for type {}", method, type.getName(), e);
       throw new WebApplicationException(500);
     }
   }
 
-  private static Method extractStaticMethod(String methodName, Map<Class<?>, Method> methodCache, Class<?> type,
-      Class<?>... arguments) {
+  private static MethodHandle findStaticMethod(String methodName, Class<?> type, MethodType methodType) {
     if(methodName == null) throw new IllegalArgumentException("methodName cannot be null");
-    if(methodCache == null) throw new IllegalArgumentException("methodCache cannot be null");
     if(type == null) throw new IllegalArgumentException("type cannot be null");
 
-    if(!methodCache.containsKey(type)) {
-      try {
-        methodCache.put(type, type.getMethod(methodName, arguments));
-      } catch(SecurityException e) {
-        log.error("Error getting '{}' method from type {}", methodName, type.getName(), e);
-        throw new WebApplicationException(500);
-      } catch(NoSuchMethodException e) {
-        throw new IllegalStateException(
-            "The type " + type.getName() + " does not define a '" + methodName + "' static method.");
-      }
+    try {
+      return MethodHandles.publicLookup().findStatic(type, methodName, methodType);
+    } catch(IllegalAccessException e) {
+      log.error("Error getting '{}' method from type {}", methodName, type.getName(), e);
+      throw new WebApplicationException(500);
+    } catch(NoSuchMethodException e) {
+      throw new IllegalStateException(
+          "The type " + type.getName() + " does not define a '" + methodName + "' static method.");
     }
-    return methodCache.get(type);
   }
 }
@@ -10,14 +10,21 @@
 
 package org.obiba.jersey.protobuf;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.util.JsonFormat;
 
+import java.io.BufferedReader;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 /**
- * Utility class that provides a simple way of writing collections of messages as a JSON array. This method will
- * delegate the Message writing to {@code JsonFormat}.
+ * Utility class that provides a simple way of writing and reading collections of messages as a JSON array. This
+ * method will delegate the Message writing and reading to {@code JsonFormat}.
  */
 @SuppressWarnings("StaticMethodOnlyUsedInOneClass")
 public final class JsonIoUtil {
@@ -28,25 +35,200 @@ public final class JsonIoUtil {
 
   private static final char JS_ARRAY_CLOSE = ']';
 
+  private static final char JS_OBJECT_OPEN = '{';
+
+  private static final char JS_OBJECT_CLOSE = '}';
+
+  private static final JsonFormat.Printer DEFAULT_PRINTER = JsonFormat.printer();
+
   private JsonIoUtil() {
   }
 
   public static void printCollection(Iterable<? extends Message> messages, Appendable appendable) throws IOException {
+    printCollection(messages, appendable, DEFAULT_PRINTER);
+  }
+
+  /**
+   * @param messages
+   * @param appendable
+   * @param printer configured printer, shared by the messages
+   * @throws IOException
+   */
+  public static void printCollection(Iterable<? extends Message> messages, Appendable appendable,
+      JsonFormat.Printer printer) throws IOException {
+    if(messages == null) throw new IllegalArgumentException("messages cannot be null");
+    printCollection(messages.iterator(), appendable, printer, 0);
+  }
+
+  /**
+   * Print the messages as they are produced by the iterator.
+   *
+   * @param messages
+   * @param appendable
+   * @param printer configured printer, shared by the messages
+   * @param flushInterval number of messages after which a {@link Flushable} appendable is flushed, 0 for never
+   * @throws IOException
+   */
+  public static void printCollection(Iterator<? extends Message> messages, Appendable appendable,
+      JsonFormat.Printer printer, int flushInterval) throws IOException {
     if(messages == null) throw new IllegalArgumentException("messages cannot be null");
     if(appendable == null) throw new IllegalArgumentException("messages cannot be null");
+    if(printer == null) throw new IllegalArgumentException("printer cannot be null");
 
     // Start the Array
     appendable.append(JS_ARRAY_OPEN);
-    boolean first = true;
-    for(Message ml : messages) {
+    int count = 0;
+    while(messages.hasNext()) {
       // If this isn't the first item, prepend with a comma
-      if(!first) appendable.append(JS_ARRAY_SEP);
-      first = false;
+      if(count > 0) appendable.append(JS_ARRAY_SEP);
+      count++;
 
-      JsonFormat.printer().appendTo(ml, appendable);
+      printer.appendTo(messages.next(), appendable);
+      if(flushInterval > 0 && count % flushInterval == 0 && appendable instanceof Flushable flushable) {
+        flushable.flush();
+      }
     }
     // Close the Array
     appendable.append(JS_ARRAY_CLOSE);
   }
 
+  /**
+   * Read a JSON array of messages. The array is split into its elements as it is read, each element is handed to
+   * {@code JsonFormat} as a reader ending with the element: the input is parsed once and only the current element is
+   * held as a JSON tree. The messages are all returned at once, the size of the array is to be bounded by the caller
+   * (entity size limit of the container...).
+   *
+   * @param input
+   * @param builder builder of the message type, reused for each element
+   * @param parser
+   * @return
+   * @throws InvalidProtocolBufferException if the input is not a JSON array of messages
+   * @throws IOException if the input cannot be read
+   */
+  public static List<Message> parseCollection(Reader input, Message.Builder builder, JsonFormat.Parser parser)
+      throws IOException {
+    if(input == null) throw new IllegalArgumentException("input cannot be null");
+    if(builder == null) throw new IllegalArgumentException("builder cannot be null");
+    if(parser == null) throw new IllegalArgumentException("parser cannot be null");
+
+    List<Message> messages = new ArrayList<>();
+    Reader reader = new BufferedReader(input);
+    int token = nextToken(reader);
+    if(token != JS_ARRAY_OPEN) {
+      throw new InvalidProtocolBufferException("Expect a JSON array but got " + describe(token));
+    }
+    token = nextToken(reader);
+    if(token == JS_ARRAY_CLOSE) return messages;
+    while(true) {
+      if(token != JS_OBJECT_OPEN) {
+        throw new InvalidProtocolBufferException("Expect a message object but got " + describe(token));
+      }
+      builder.clear();
+      ElementReader element = new ElementReader(reader);
+      try {
+        parser.merge(element, builder);
+      } catch(InvalidProtocolBufferException e) {
+        // failure to read the input, reported as a parsing failure
+        if(element.failure != null) throw element.failure;
+        throw e;
+      }
+      if(!element.isTerminated()) throw new InvalidProtocolBufferException("JSON array element is not terminated");
+      messages.add(builder.build());
+      token = nextToken(reader);
+      if(token == JS_ARRAY_CLOSE) return messages;
+      if(token != JS_ARRAY_SEP) {
+        throw new InvalidProtocolBufferException("Expect ',' or ']' in JSON array but got " + describe(token));
+      }
+      token = nextToken(reader);
+    }
+  }
+
+  /**
+   * @return the next character that is not a white space, -1 at the end of the input
+   */
+  private static int nextToken(Reader reader) throws IOException {
+    int c = reader.read();
+    while(c >= 0 && Character.isWhitespace(c)) {
+      c = reader.read();
+    }
+    return c;
+  }
+
+  private static String describe(int token) {
+    return token < 0 ? "end of input" : "'" + (char) token + "'";
+  }
+
+  /**
+   * Reader of a JSON object of the array, which opening brace was already read from the array reader: ends with the
+   * closing brace of the object.
+   */
+  private static final class ElementReader extends Reader {
+
+    private final Reader reader;
+
+    private boolean opened;
+
+    private int depth;
+
+    private boolean inString;
+
+    private boolean escaped;
+
+    private IOException failure;
+
+    private ElementReader(Reader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+      int count = 0;
+      while(count < length && !isTerminated()) {
+        int c;
+        if(opened) {
+          c = readInput();
+          if(c < 0) break;
+        } else {
+          c = JS_OBJECT_OPEN;
+          opened = true;
+        }
+        track((char) c);
+        buffer[offset + count++] = (char) c;
+      }
+      return count == 0 && length > 0 ? -1 : count;
+    }
+
+    private int readInput() throws IOException {
+      try {
+        return reader.read();
+      } catch(IOException e) {
+        failure = e;
+        throw e;
+      }
+    }
+
+    private void track(char c) {
+      if(inString) {
+        if(escaped) escaped = false;
+        else if(c == '\\') escaped = true;
+        else if(c == '"') inString = false;
+      } else if(c == '"') {
+        inString = true;
+      } else if(c == JS_OBJECT_OPEN || c == JS_ARRAY_OPEN) {
+        depth++;
+      } else if(c == JS_OBJECT_CLOSE || c == JS_ARRAY_CLOSE) {
+        depth--;
+      }
+    }
+
+    private boolean isTerminated() {
+      return opened && depth == 0;
+    }
+
+    @Override
+    public void close() {
+      // the array reader is closed by the caller
+    }
+  }
+
 }
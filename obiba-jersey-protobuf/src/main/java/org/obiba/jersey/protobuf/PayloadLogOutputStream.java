@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.jersey.protobuf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Copies the first bytes written to the underlying stream and logs them at trace level when closed, so that the
+ * payload is not serialized a second time for logging.
+ */
+class PayloadLogOutputStream extends FilterOutputStream {
+
+  private final Logger log;
+
+  private final String description;
+
+  private final int maxBytes;
+
+  private final ByteArrayOutputStream copy;
+
+  private long count;
+
+  private boolean logged;
+
+  PayloadLogOutputStream(OutputStream out, Logger log, String description, int maxBytes) {
+    super(out);
+    this.log = log;
+    this.description = description;
+    this.maxBytes = maxBytes;
+    copy = new ByteArrayOutputStream(Math.min(maxBytes, 1024));
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    if(count++ < maxBytes) copy.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    if(count < maxBytes) copy.write(b, off, (int) Math.min(len, maxBytes - count));
+    count += len;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if(!logged) {
+        logged = true;
+        log.trace("Print {} ({} bytes): {}{}", description, count, copy.toString(Charsets.UTF_8),
+            count > maxBytes ? "..." : "");
+      }
+    }
+  }
+}
@@ -11,7 +11,9 @@ package org.obiba.jersey.protobuf;
 
 import java.io.*;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.Produces;
@@ -26,15 +28,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
-import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.Message;
 import com.google.protobuf.Message.Builder;
+import com.google.protobuf.TypeRegistry;
 import com.google.protobuf.util.JsonFormat;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
 import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON;
 
+/**
+ * JSON (de)serialization of the protobuf messages. The printer and the parser of each message type are built once, with
+ * the {@link TypeRegistry} of the proto file of the message so that the 'Any' fields are resolved. Collections and streams
+ * of a non generated element type ({@code Stream<? extends Message>}) are printed without type registry.
+ */
 @Provider
 @Consumes(APPLICATION_JSON)
 @Produces(APPLICATION_JSON)
@@ -43,6 +50,72 @@ public class ProtobufJsonProvider extends AbstractProtobufProvider
 
   private static final Logger log = LoggerFactory.getLogger(ProtobufJsonProvider.class);
 
+  public static final int DEFAULT_PAYLOAD_LOG_SAMPLE_RATE = 1;
+
+  public static final int DEFAULT_PAYLOAD_LOG_MAX_BYTES = 4096;
+
+  private boolean omittingInsignificantWhitespace = false;
+
+  private boolean includingDefaultValueFields = false;
+
+  private boolean ignoringUnknownFields = false;
+
+  private volatile ClassValue<JsonCodec> codecs = newCodecs();
+
+  private int payloadLogSampleRate = DEFAULT_PAYLOAD_LOG_SAMPLE_RATE;
+
+  private int payloadLogMaxBytes = DEFAULT_PAYLOAD_LOG_MAX_BYTES;
+
+  private final AtomicLong responseCount = new AtomicLong();
+
+  /**
+   * Print compact JSON, without spaces nor line breaks.
+   *
+   * @param omittingInsignificantWhitespace
+   */
+  public void setOmittingInsignificantWhitespace(boolean omittingInsignificantWhitespace) {
+    this.omittingInsignificantWhitespace = omittingInsignificantWhitespace;
+    codecs = newCodecs();
+  }
+
+  /**
+   * Print the fields that have their default value.
+   *
+   * @param includingDefaultValueFields
+   */
+  public void setIncludingDefaultValueFields(boolean includingDefaultValueFields) {
+    this.includingDefaultValueFields = includingDefaultValueFields;
+    codecs = newCodecs();
+  }
+
+  /**
+   * Parse JSON with fields that are not defined by the message type.
+   *
+   * @param ignoringUnknownFields
+   */
+  public void setIgnoringUnknownFields(boolean ignoringUnknownFields) {
+    this.ignoringUnknownFields = ignoringUnknownFields;
+    codecs = newCodecs();
+  }
+
+  /**
+   * When trace is enabled, log the payload of one response out of the given number, 0 to never log payloads.
+   *
+   * @param payloadLogSampleRate
+   */
+  public void setPayloadLogSampleRate(int payloadLogSampleRate) {
+    this.payloadLogSampleRate = payloadLogSampleRate;
+  }
+
+  /**
+   * Maximum number of bytes of a logged payload.
+   *
+   * @param payloadLogMaxBytes
+   */
+  public void setPayloadLogMaxBytes(int payloadLogMaxBytes) {
+    this.payloadLogMaxBytes = payloadLogMaxBytes;
+  }
+
   @Override
   public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
     return Message.class.isAssignableFrom(type) || isWrapped(type, genericType);
@@ -53,20 +126,21 @@ public class ProtobufJsonProvider extends AbstractProtobufProvider
       MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
       throws IOException, WebApplicationException {
     Class<Message> messageType = extractMessageType(type, genericType);
-
-    ExtensionRegistry extensionRegistry = extensions().forMessage(messageType);
     Builder builder = builders().forMessage(messageType);
 
     Reader input = new InputStreamReader(entityStream, Charsets.UTF_8);
-    // FIXME is there a pbf support for arrays?
-    // FIXME how do we pass the extensionRegistry?
-    JsonFormat.parser().merge(input, builder);
+    // JsonFormat does not support extensions, message types of the 'Any' fields are resolved with the type registry
+    JsonFormat.Parser parser = codecs.get(messageType).parser;
+    if(isWrapped(type, genericType)) {
+      return JsonIoUtil.parseCollection(input, builder, parser);
+    }
+    parser.merge(input, builder);
     return builder.build();
   }
 
   @Override
   public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
-    return Message.class.isAssignableFrom(type) || isWrapped(type, genericType);
+    return Message.class.isAssignableFrom(type) || isWrapped(type, genericType) || isStreamed(type, genericType);
   }
 
   @Override
@@ -80,20 +154,67 @@ public class ProtobufJsonProvider extends AbstractProtobufProvider
       MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
       throws IOException, WebApplicationException {
 
-    try(OutputStreamWriter output = new OutputStreamWriter(entityStream, Charsets.UTF_8)) {
-      if(isWrapped(type, genericType)) {
+    Class<Message> messageType = extractMessageType(type, genericType);
+    JsonFormat.Printer printer = codecs.get(messageType).printer;
+    boolean wrapped = isWrapped(type, genericType) || isStreamed(type, genericType);
+    OutputStream stream = entityStream;
+    if(isPayloadLogged()) {
+      String description = (wrapped ? "message collection " : "single message ") + messageType.getSimpleName();
+      stream = new PayloadLogOutputStream(entityStream, log, description, payloadLogMaxBytes);
+    }
+    try(OutputStreamWriter output = new OutputStreamWriter(stream, Charsets.UTF_8)) {
+      if(wrapped) {
         // JsonFormat does not provide a printList method
-        if(log.isDebugEnabled()) {
-          Appendable sb = new StringBuilder();
-          JsonIoUtil.printCollection((Iterable<Message>) obj, sb);
-          log.trace("Print message collection: {}", sb);
+        try {
+          JsonIoUtil.printCollection(iterator(obj), output, printer, getFlushInterval());
+        } finally {
+          closeSource(obj);
         }
-        JsonIoUtil.printCollection((Iterable<Message>) obj, output);
       } else {
-        log.trace("Print single message: {}", JsonFormat.printer().print((Message) obj));
-        JsonFormat.printer().appendTo((Message) obj, output);
+        printer.appendTo((Message) obj, output);
       }
       output.flush();
     }
   }
+
+  private boolean isPayloadLogged() {
+    return log.isTraceEnabled() && payloadLogSampleRate > 0
+        && responseCount.getAndIncrement() % payloadLogSampleRate == 0;
+  }
+
+  private ClassValue<JsonCodec> newCodecs() {
+    JsonFormat.Printer printer = JsonFormat.printer();
+    if(omittingInsignificantWhitespace) printer = printer.omittingInsignificantWhitespace();
+    if(includingDefaultValueFields) printer = printer.includingDefaultValueFields();
+    JsonFormat.Parser parser = JsonFormat.parser();
+    if(ignoringUnknownFields) parser = parser.ignoringUnknownFields();
+    JsonFormat.Printer basePrinter = printer;
+    JsonFormat.Parser baseParser = parser;
+    return new ClassValue<>() {
+      @Override
+      @SuppressWarnings("unchecked")
+      protected JsonCodec computeValue(Class<?> messageType) {
+        if(Modifier.isAbstract(messageType.getModifiers())) {
+          // element type such as Stream<? extends Message>: no descriptor to build the type registry from
+          return new JsonCodec(basePrinter, baseParser);
+        }
+        // all the message types of the proto file and of its dependencies
+        TypeRegistry typeRegistry = TypeRegistry.newBuilder()
+            .add(descriptors().forMessage((Class<? extends Message>) messageType)).build();
+        return new JsonCodec(basePrinter.usingTypeRegistry(typeRegistry), baseParser.usingTypeRegistry(typeRegistry));
+      }
+    };
+  }
+
+  private static final class JsonCodec {
+
+    private final JsonFormat.Printer printer;
+
+    private final JsonFormat.Parser parser;
+
+    private JsonCodec(JsonFormat.Printer printer, JsonFormat.Parser parser) {
+      this.printer = printer;
+      this.parser = parser;
+    }
+  }
 }
@@ -16,6 +16,7 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.Produces;
@@ -65,7 +66,7 @@ public class ProtobufNativeProvider extends AbstractProtobufProvider
 
   @Override
   public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
-    return Message.class.isAssignableFrom(type) || isWrapped(type, genericType);
+    return Message.class.isAssignableFrom(type) || isWrapped(type, genericType) || isStreamed(type, genericType);
   }
 
   @Override
@@ -78,9 +79,16 @@ public class ProtobufNativeProvider extends AbstractProtobufProvider
   public void writeTo(Object obj, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
       MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
       throws IOException, WebApplicationException {
-    if(isWrapped(type, genericType)) {
-      for(MessageLite message : (Iterable<Message>) obj) {
-        message.writeDelimitedTo(entityStream);
+    if(isWrapped(type, genericType) || isStreamed(type, genericType)) {
+      try {
+        Iterator<Message> messages = iterator(obj);
+        int count = 0;
+        while(messages.hasNext()) {
+          messages.next().writeDelimitedTo(entityStream);
+          if(getFlushInterval() > 0 && ++count % getFlushInterval() == 0) entityStream.flush();
+        }
+      } finally {
+        closeSource(obj);
       }
     } else {
       ((MessageLite) obj).writeTo(entityStream);
@@ -16,6 +16,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -185,6 +186,9 @@ public class Types {
       if(typeVar.getBounds() != null && typeVar.getBounds().length > 0) {
         return getRawType(typeVar.getBounds()[0]);
       }
+    } else if(type instanceof WildcardType wildcardType) {
+      // e.g. '? extends Message'
+      return getRawType(wildcardType.getUpperBounds()[0]);
     }
     throw new RuntimeException("Unable to determine base class from Type");
   }
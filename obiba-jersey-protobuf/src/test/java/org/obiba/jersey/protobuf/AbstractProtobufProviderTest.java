@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jersey.protobuf;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.web.model.AuthDtos;
+import org.obiba.web.model.ErrorDtos;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.Message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AbstractProtobufProviderTest {
+
+  private AbstractProtobufProvider provider;
+
+  @Before
+  public void setUp() {
+    provider = new ProtobufNativeProvider();
+  }
+
+  @Test
+  public void test_builders_are_created_from_the_default_instance() {
+    Message.Builder first = provider.builders().forMessage(AuthDtos.SubjectDto.class);
+    Message.Builder second = provider.builders().forMessage(AuthDtos.SubjectDto.class);
+    // a new builder per call, from the same cached default instance
+    assertThat(first).isNotSameAs(second);
+    assertThat(first.getDefaultInstanceForType()).isSameAs(AuthDtos.SubjectDto.getDefaultInstance());
+    assertThat(second.getDefaultInstanceForType()).isSameAs(first.getDefaultInstanceForType());
+  }
+
+  @Test
+  public void test_descriptors_are_read_from_the_default_instance() {
+    assertThat(provider.descriptors().forMessage(AuthDtos.SubjectDto.class))
+        .isSameAs(AuthDtos.SubjectDto.getDescriptor());
+  }
+
+  @Test
+  public void test_extension_registry_is_built_once_per_proto_file() {
+    ExtensionRegistry registry = provider.extensions().forMessage(ErrorDtos.ClientErrorDto.class);
+    assertThat(provider.extensions().forMessage(ErrorDtos.ClientErrorDto.class)).isSameAs(registry);
+    // messages of the same proto file share the registry
+    assertThat(provider.extensions().forMessage(ErrorDtos.ServerErrorDto.class)).isSameAs(registry);
+    assertThat(registry.findImmutableExtensionByNumber(ErrorDtos.ClientErrorDto.getDescriptor(), 1002)).isNotNull();
+  }
+
+  @Test
+  public void test_registered_types_are_cached() {
+    provider.register(AuthDtos.SubjectDto.class, ErrorDtos.ClientErrorDto.class);
+    ExtensionRegistry registry = provider.extensions().forMessage(ErrorDtos.ClientErrorDto.class);
+    provider.register(ErrorDtos.ClientErrorDto.class);
+    assertThat(provider.extensions().forMessage(ErrorDtos.ClientErrorDto.class)).isSameAs(registry);
+    assertThat(provider.extensions().forMessage(AuthDtos.SubjectDto.class)
+        .findImmutableExtensionByNumber(ErrorDtos.ClientErrorDto.getDescriptor(), 1002)).isNull();
+  }
+
+}
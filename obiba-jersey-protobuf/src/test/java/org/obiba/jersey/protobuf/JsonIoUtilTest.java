@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jersey.protobuf;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Test;
+import org.obiba.web.model.AuthDtos;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class JsonIoUtilTest {
+
+  private static final AuthDtos.SubjectDto ADMIN = AuthDtos.SubjectDto.newBuilder().setUsername("admin")
+      .addGroups("admin").addAttributes(AuthDtos.SubjectDto.AttributeDto.newBuilder().setKey("realm").setValue("ini"))
+      .build();
+
+  private static final AuthDtos.SubjectDto USER = AuthDtos.SubjectDto.newBuilder().setUsername("user").build();
+
+  @Test
+  public void test_array_round_trip() throws IOException {
+    StringBuilder json = new StringBuilder();
+    JsonIoUtil.printCollection(ImmutableList.of(ADMIN, USER), json);
+    assertThat(json.charAt(0)).isEqualTo('[');
+    assertThat(json.charAt(json.length() - 1)).isEqualTo(']');
+
+    List<Message> messages = parse(json.toString());
+    assertThat(messages).containsExactly(ADMIN, USER);
+  }
+
+  @Test
+  public void test_empty_array_round_trip() throws IOException {
+    StringBuilder json = new StringBuilder();
+    JsonIoUtil.printCollection(ImmutableList.<Message>of(), json);
+    assertThat(json.toString()).isEqualTo("[]");
+    assertThat(parse(json.toString())).isEmpty();
+  }
+
+  @Test
+  public void test_elements_with_brackets_in_strings() throws IOException {
+    AuthDtos.SubjectDto subject = AuthDtos.SubjectDto.newBuilder().setUsername("a\"}]b\\").addGroups("{[").build();
+    StringBuilder json = new StringBuilder();
+    JsonIoUtil.printCollection(ImmutableList.of(subject, USER), json);
+    assertThat(parse(json.toString())).containsExactly(subject, USER);
+  }
+
+  @Test
+  public void test_read_failure_is_not_a_syntax_error() {
+    Reader input = new StringReader("[{\"username\": \"admin\"}, {\"username\"") {
+      @Override
+      public int read(char[] buffer, int offset, int length) throws IOException {
+        int count = super.read(buffer, offset, length);
+        if(count < 0) throw new IOException("Connection reset by peer");
+        return count;
+      }
+    };
+    try {
+      JsonIoUtil.parseCollection(input, AuthDtos.SubjectDto.newBuilder(), JsonFormat.parser());
+      fail("Read failure must be reported");
+    } catch(IOException e) {
+      assertThat(e).isNotInstanceOf(InvalidProtocolBufferException.class).hasMessage("Connection reset by peer");
+    }
+  }
+
+  @Test
+  public void test_element_not_terminated() throws IOException {
+    assertInvalid("[{\"username\": \"admin\"");
+  }
+
+  @Test
+  public void test_malformed_array() throws IOException {
+    assertInvalid("[{\"username\": \"admin\"},}");
+  }
+
+  @Test
+  public void test_array_not_terminated() throws IOException {
+    assertInvalid("[{\"username\": \"admin\"}");
+  }
+
+  @Test
+  public void test_not_an_array() throws IOException {
+    assertInvalid("{\"username\": \"admin\"}");
+  }
+
+  @Test
+  public void test_invalid_element() throws IOException {
+    assertInvalid("[{\"username\": \"admin\"}, {\"unknown\": 1}]");
+  }
+
+  private static void assertInvalid(String json) throws IOException {
+    try {
+      parse(json);
+      fail("Invalid JSON array must be rejected: " + json);
+    } catch(InvalidProtocolBufferException e) {
+      // expected
+    }
+  }
+
+  private static List<Message> parse(String json) throws IOException {
+    return JsonIoUtil.parseCollection(new StringReader(json), AuthDtos.SubjectDto.newBuilder(), JsonFormat.parser());
+  }
+
+}
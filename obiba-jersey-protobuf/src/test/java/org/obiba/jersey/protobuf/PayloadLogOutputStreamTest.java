@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jersey.protobuf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PayloadLogOutputStreamTest {
+
+  private static final String PAYLOAD = "{\"username\": \"admin\"}";
+
+  private Logger log;
+
+  private ListAppender<ILoggingEvent> appender;
+
+  @Before
+  public void setUp() {
+    log = (Logger) LoggerFactory.getLogger(PayloadLogOutputStreamTest.class);
+    log.setLevel(Level.TRACE);
+    appender = new ListAppender<>();
+    appender.start();
+    log.addAppender(appender);
+  }
+
+  @After
+  public void tearDown() {
+    log.detachAppender(appender);
+    log.setLevel(null);
+  }
+
+  @Test
+  public void test_payload_is_logged_when_closed() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try(OutputStream stream = new PayloadLogOutputStream(output, log, "single message SubjectDto", 1024)) {
+      stream.write(PAYLOAD.getBytes(Charsets.UTF_8));
+      assertThat(appender.list).isEmpty();
+    }
+    assertThat(output.toString(Charsets.UTF_8)).isEqualTo(PAYLOAD);
+    assertThat(appender.list).hasSize(1);
+    assertThat(appender.list.get(0).getLevel()).isEqualTo(Level.TRACE);
+    assertThat(appender.list.get(0).getFormattedMessage())
+        .isEqualTo("Print single message SubjectDto (" + PAYLOAD.length() + " bytes): " + PAYLOAD);
+  }
+
+  @Test
+  public void test_logged_payload_is_truncated() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try(OutputStream stream = new PayloadLogOutputStream(output, log, "single message SubjectDto", 5)) {
+      byte[] bytes = PAYLOAD.getBytes(Charsets.UTF_8);
+      // single bytes and arrays crossing the limit
+      stream.write(bytes[0]);
+      stream.write(bytes, 1, 6);
+      stream.write(bytes, 7, bytes.length - 7);
+    }
+    // all the bytes are written to the underlying stream
+    assertThat(output.toString(Charsets.UTF_8)).isEqualTo(PAYLOAD);
+    assertThat(appender.list).hasSize(1);
+    assertThat(appender.list.get(0).getFormattedMessage())
+        .isEqualTo("Print single message SubjectDto (" + PAYLOAD.length() + " bytes): " + PAYLOAD.substring(0, 5)
+            + "...");
+  }
+
+  @Test
+  public void test_payload_is_logged_once() throws IOException {
+    OutputStream stream = new PayloadLogOutputStream(new ByteArrayOutputStream(), log, "message collection", 1024);
+    stream.write(PAYLOAD.getBytes(Charsets.UTF_8));
+    stream.close();
+    stream.close();
+    assertThat(appender.list).hasSize(1);
+  }
+
+}
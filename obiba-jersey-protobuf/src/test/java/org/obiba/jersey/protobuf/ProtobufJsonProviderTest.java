@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jersey.protobuf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import jakarta.ws.rs.core.MediaType;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.web.model.AuthDtos;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.reflect.TypeToken;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class ProtobufJsonProviderTest {
+
+  private static final Annotation[] NO_ANNOTATIONS = { };
+
+  private static final Type STREAM_TYPE = new TypeToken<Stream<AuthDtos.SubjectDto>>() {}.getType();
+
+  private ProtobufJsonProvider provider;
+
+  @Before
+  public void setUp() {
+    provider = new ProtobufJsonProvider();
+  }
+
+  @Test
+  public void test_default_printer() throws IOException {
+    String json = write(AuthDtos.SubjectDto.newBuilder().setUsername("admin").build(), AuthDtos.SubjectDto.class);
+    assertThat(json).contains("\n").contains("\"username\": \"admin\"").doesNotContain("groups");
+  }
+
+  @Test
+  public void test_printer_options() throws IOException {
+    provider.setOmittingInsignificantWhitespace(true);
+    provider.setIncludingDefaultValueFields(true);
+    String json = write(AuthDtos.SubjectDto.newBuilder().setUsername("admin").build(), AuthDtos.SubjectDto.class);
+    assertThat(json).doesNotContain("\n").contains("\"username\":\"admin\"").contains("\"groups\":[]");
+
+    // options can be changed after the printers were built
+    provider.setOmittingInsignificantWhitespace(false);
+    json = write(AuthDtos.SubjectDto.newBuilder().setUsername("admin").build(), AuthDtos.SubjectDto.class);
+    assertThat(json).contains("\n").contains("\"groups\": []");
+  }
+
+  @Test
+  public void test_parser_options() throws IOException {
+    String json = "{\"username\": \"admin\", \"unknown\": 1}";
+    try {
+      read(json, AuthDtos.SubjectDto.class);
+      fail("Unknown fields must be rejected by default");
+    } catch(InvalidProtocolBufferException e) {
+      // expected
+    }
+    provider.setIgnoringUnknownFields(true);
+    assertThat(read(json, AuthDtos.SubjectDto.class))
+        .isEqualTo(AuthDtos.SubjectDto.newBuilder().setUsername("admin").build());
+  }
+
+  @Test
+  public void test_read_array() throws IOException {
+    Type listType = new TypeToken<List<AuthDtos.SubjectDto>>() {}.getType();
+    assertThat(read("[{\"username\": \"admin\"}, {\"username\": \"user\"}]", listType))
+        .isEqualTo(ImmutableList.of(AuthDtos.SubjectDto.newBuilder().setUsername("admin").build(),
+            AuthDtos.SubjectDto.newBuilder().setUsername("user").build()));
+  }
+
+  @Test
+  public void test_read_malformed_array() throws IOException {
+    Type listType = new TypeToken<List<AuthDtos.SubjectDto>>() {}.getType();
+    try {
+      read("[{\"username\": \"admin\"}", listType);
+      fail("Array not terminated must be rejected");
+    } catch(InvalidProtocolBufferException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void test_write_stream_with_flush_interval() throws IOException {
+    provider.setFlushInterval(1);
+    List<Integer> flushedSizes = new ArrayList<>();
+    ByteArrayOutputStream output = new ByteArrayOutputStream() {
+      @Override
+      public void flush() {
+        flushedSizes.add(size());
+      }
+    };
+    AtomicBoolean closed = new AtomicBoolean();
+    Stream<AuthDtos.SubjectDto> subjects = Stream.of("admin", "user", "guest")
+        .map(name -> AuthDtos.SubjectDto.newBuilder().setUsername(name).build()).onClose(() -> closed.set(true));
+    provider.writeTo(subjects, Stream.class, STREAM_TYPE, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null,
+        output);
+
+    assertThat(closed.get()).isTrue();
+    String json = output.toString(Charsets.UTF_8);
+    assertThat(json).startsWith("[").endsWith("]").contains("\"admin\"", "\"user\"", "\"guest\"");
+    // flushed after each message, before the array is closed
+    assertThat(flushedSizes.size()).isGreaterThanOrEqualTo(3);
+    assertThat(flushedSizes.get(0)).isGreaterThan(0).isLessThan(flushedSizes.get(1));
+    assertThat(flushedSizes.get(1)).isLessThan(flushedSizes.get(2));
+    assertThat(flushedSizes.get(2)).isLessThan(json.length());
+  }
+
+  @Test
+  public void test_write_stream_of_message_base_type() throws IOException {
+    Type streamType = new TypeToken<Stream<? extends Message>>() {}.getType();
+    Stream<Message> messages = Stream.of(AuthDtos.SubjectDto.newBuilder().setUsername("admin").build(),
+        AuthDtos.SubjectDto.AttributeDto.newBuilder().setKey("key").setValue("value").build());
+    assertThat(provider.isWriteable(Stream.class, streamType, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE))
+        .isTrue();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    provider.writeTo(messages, Stream.class, streamType, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null,
+        output);
+
+    assertThat(output.toString(Charsets.UTF_8)).startsWith("[").endsWith("]")
+        .contains("\"username\": \"admin\"", "\"key\": \"key\"");
+  }
+
+  @Test
+  public void test_stream_is_closed_on_write_failure() {
+    provider.setFlushInterval(1);
+    OutputStream output = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Connection reset by peer");
+      }
+    };
+    AtomicBoolean closed = new AtomicBoolean();
+    Stream<AuthDtos.SubjectDto> subjects = Stream.iterate(0, i -> i + 1)
+        .map(i -> AuthDtos.SubjectDto.newBuilder().setUsername("user" + i).build()).onClose(() -> closed.set(true));
+    try {
+      provider.writeTo(subjects, Stream.class, STREAM_TYPE, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null,
+          output);
+      fail("Write failure must be reported");
+    } catch(IOException e) {
+      // expected
+    }
+    assertThat(closed.get()).isTrue();
+  }
+
+  private String write(Object entity, Type genericType) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Class<?> type = entity.getClass();
+    assertThat(provider.isWriteable(type, genericType, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE)).isTrue();
+    provider.writeTo(entity, type, genericType, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null, output);
+    return output.toString(Charsets.UTF_8);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Object read(String json, Type genericType) throws IOException {
+    Class<Object> type = (Class<Object>) Types.getRawType(genericType);
+    assertThat(provider.isReadable(type, genericType, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE)).isTrue();
+    return provider.readFrom(type, genericType, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null,
+        new ByteArrayInputStream(json.getBytes(Charsets.UTF_8)));
+  }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2019 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.jersey.protobuf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import jakarta.ws.rs.core.MediaType;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.web.model.AuthDtos;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.reflect.TypeToken;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class ProtobufNativeProviderTest {
+
+  private static final Annotation[] NO_ANNOTATIONS = { };
+
+  private static final MediaType PROTOBUF_TYPE = MediaType.valueOf(ProtobufNativeProvider.APPLICATION_X_PROTOBUF);
+
+  private static final Type STREAM_TYPE = new TypeToken<Stream<AuthDtos.SubjectDto>>() {}.getType();
+
+  private static final Type ITERATOR_TYPE = new TypeToken<Iterator<AuthDtos.SubjectDto>>() {}.getType();
+
+  private static final Type LIST_TYPE = new TypeToken<List<AuthDtos.SubjectDto>>() {}.getType();
+
+  private static final List<AuthDtos.SubjectDto> SUBJECTS = ImmutableList.of(subject("admin"), subject("user"),
+      subject("guest"));
+
+  private ProtobufNativeProvider provider;
+
+  @Before
+  public void setUp() {
+    provider = new ProtobufNativeProvider();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void test_write_stream_with_flush_interval() throws IOException {
+    provider.setFlushInterval(2);
+    AtomicInteger flushes = new AtomicInteger();
+    ByteArrayOutputStream output = new ByteArrayOutputStream() {
+      @Override
+      public void flush() {
+        flushes.incrementAndGet();
+      }
+    };
+    AtomicBoolean closed = new AtomicBoolean();
+    assertThat(provider.isWriteable(Stream.class, STREAM_TYPE, NO_ANNOTATIONS, PROTOBUF_TYPE)).isTrue();
+    provider.writeTo(SUBJECTS.stream().onClose(() -> closed.set(true)), Stream.class, STREAM_TYPE, NO_ANNOTATIONS,
+        PROTOBUF_TYPE, null, output);
+
+    assertThat(closed.get()).isTrue();
+    assertThat(flushes.get()).isEqualTo(1);
+    // delimited messages, read back as a list
+    Object messages = provider.readFrom((Class<Object>) (Class<?>) List.class, LIST_TYPE, NO_ANNOTATIONS,
+        PROTOBUF_TYPE, null, new ByteArrayInputStream(output.toByteArray()));
+    assertThat(messages).isEqualTo(SUBJECTS);
+  }
+
+  @Test
+  public void test_write_iterator() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    assertThat(provider.isWriteable(Iterator.class, ITERATOR_TYPE, NO_ANNOTATIONS, PROTOBUF_TYPE)).isTrue();
+    provider.writeTo(SUBJECTS.iterator(), Iterator.class, ITERATOR_TYPE, NO_ANNOTATIONS, PROTOBUF_TYPE, null, output);
+
+    ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+    for(AuthDtos.SubjectDto subject : SUBJECTS) {
+      assertThat(AuthDtos.SubjectDto.parseDelimitedFrom(input)).isEqualTo(subject);
+    }
+    assertThat(input.available()).isEqualTo(0);
+  }
+
+  @Test
+  public void test_stream_is_closed_on_write_failure() {
+    OutputStream output = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Connection reset by peer");
+      }
+    };
+    AtomicBoolean closed = new AtomicBoolean();
+    Stream<AuthDtos.SubjectDto> subjects = Stream.iterate(0, i -> i + 1).map(i -> subject("user" + i))
+        .onClose(() -> closed.set(true));
+    try {
+      provider.writeTo(subjects, Stream.class, STREAM_TYPE, NO_ANNOTATIONS, PROTOBUF_TYPE, null, output);
+      fail("Write failure must be reported");
+    } catch(IOException e) {
+      // expected
+    }
+    assertThat(closed.get()).isTrue();
+  }
+
+  private static AuthDtos.SubjectDto subject(String username) {
+    return AuthDtos.SubjectDto.newBuilder().setUsername(username).build();
+  }
+
+}